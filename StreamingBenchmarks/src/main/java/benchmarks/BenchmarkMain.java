@@ -0,0 +1,19 @@
+package benchmarks;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// JMH's own launcher, writing JSON results unless another format is asked for,
+// so runs can be compared by scripts to catch regressions
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        List<String> all = new ArrayList<>(Arrays.asList(args));
+        if (!all.contains("-rf") && !all.contains("-rff")) {
+            all.addAll(Arrays.asList("-rf", "json", "-rff", "jmh-result.json"));
+        }
+        Main.main(all.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,120 @@
+package benchmarks;
+
+import Server.CatalogEntry;
+import Server.ControlConnection;
+import Server.ControlServer;
+import Server.VideoCatalog;
+import client.ControlClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+// LIST against synthetic catalogs: encoding the reply alone, and the full round trip over the control protocol
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CatalogListBenchmark {
+    @Param({"1000", "100000"})
+    public int files;
+
+    private Path folder;
+    private VideoCatalog catalog;
+    private ControlClient client;
+    private final ByteArrayOutputStream reply = new ByteArrayOutputStream(1 << 20);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory("catalog-bench");
+        // probed entries in the cache, so the catalog starts without running ffprobe
+        try (BufferedWriter cache = Files.newBufferedWriter(folder.resolve(".catalog"), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < files; i++) {
+                String name = String.format("video-%06d-720p.mp4", i);
+                File file = Files.createFile(folder.resolve(name)).toFile();
+                cache.write(new CatalogEntry(name, 0, file.lastModified(), 600, 2_800_000, 1280, 720, "mp4",
+                    "h264", true).toLine());
+                cache.newLine();
+            }
+        }
+        catalog = new VideoCatalog(folder.toFile(), Collections::singletonList);
+        catalog.start();
+
+        int port = Ports.free();
+        ControlServer server = new ControlServer(port, 1, new ControlServer.Handler() {
+            @Override
+            public boolean isBlocking(String command) {
+                return false;
+            }
+
+            @Override
+            public void handle(ControlConnection connection, String command, DataInputStream in,
+                               DataOutputStream out) throws IOException {
+                catalog.writeNames(out);
+            }
+
+            @Override
+            public void closed(ControlConnection connection) {
+            }
+        });
+        Thread acceptor = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }, "bench-control");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Ports.awaitListening(port);
+        client = new ControlClient("127.0.0.1", port);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        TempFolders.delete(folder);
+    }
+
+    @Benchmark
+    public int encodeReply() throws IOException {
+        reply.reset();
+        catalog.writeNames(new DataOutputStream(reply));
+        return reply.size();
+    }
+
+    // what a client waits for: request, reply and decoding every name
+    @Benchmark
+    public int roundTrip() throws IOException {
+        DataInputStream in = client.call(out -> out.writeUTF("LIST"));
+        int count = in.readInt();
+        int chars = 0;
+        for (int i = 0; i < count; i++) {
+            chars += in.readUTF().length();
+        }
+        return chars;
+    }
+}
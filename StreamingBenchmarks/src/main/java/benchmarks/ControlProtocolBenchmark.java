@@ -0,0 +1,112 @@
+package benchmarks;
+
+import Server.ControlConnection;
+import Server.ControlServer;
+import client.ControlClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Requests per second through the framed control protocol, one connection per benchmark thread.
+// Vary the number of concurrent connections with -t.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class ControlProtocolBenchmark {
+    private static final int PIPELINE_DEPTH = 16;
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        int port;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            port = Ports.free();
+            ControlServer server = new ControlServer(port, Math.min(4, Runtime.getRuntime().availableProcessors()),
+                new ControlServer.Handler() {
+                    @Override
+                    public boolean isBlocking(String command) {
+                        return false;
+                    }
+
+                    @Override
+                    public void handle(ControlConnection connection, String command, DataInputStream in,
+                                       DataOutputStream out) throws IOException {
+                        // the size of a STATUS reply
+                        out.writeUTF("s-000042 UDP movie-720p.mp4 -> 127.0.0.1:20000 STREAMING (12s)");
+                    }
+
+                    @Override
+                    public void closed(ControlConnection connection) {
+                    }
+                });
+            Thread acceptor = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }, "bench-control");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            Ports.awaitListening(port);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        ControlClient client;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws IOException {
+            client = new ControlClient("127.0.0.1", server.port);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            client.close();
+        }
+    }
+
+    // one request at a time per connection
+    @Benchmark
+    public String sequential(Connection connection) throws IOException {
+        return connection.client.call(out -> out.writeUTF("STATUS")).readUTF();
+    }
+
+    // several requests in flight per connection, matched back by correlation id
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE_DEPTH)
+    public int pipelined(Connection connection) throws Exception {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<DataInputStream>[] replies = new CompletableFuture[PIPELINE_DEPTH];
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            replies[i] = connection.client.request(out -> out.writeUTF("STATUS"));
+        }
+        int length = 0;
+        for (CompletableFuture<DataInputStream> reply : replies) {
+            length += reply.get().readUTF().length();
+        }
+        return length;
+    }
+}
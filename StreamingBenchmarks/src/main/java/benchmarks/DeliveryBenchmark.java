@@ -0,0 +1,153 @@
+package benchmarks;
+
+import Server.HttpFileServer;
+import Server.SegmentCache;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Bytes per second out of the HTTP server over keep-alive connections: whole files sent with
+// transferTo, and segments sent from the in-memory segment cache. The bytes counter is the rate to read.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class DeliveryBenchmark {
+    private static final int FILE_BYTES = 64 << 20;
+    private static final int SEGMENT_BYTES = 2 << 20;
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"file", "segment"})
+        public String source;
+
+        Path root;
+        int port;
+        String path;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            root = Files.createTempDirectory("delivery-bench");
+            Path videos = Files.createDirectories(root.resolve("videos"));
+            Path segments = Files.createDirectories(root.resolve("segments").resolve("bench"));
+            Random random = new Random(42);
+            byte[] file = new byte[FILE_BYTES];
+            random.nextBytes(file);
+            Files.write(videos.resolve("bench-720p.mp4"), file);
+            byte[] segment = new byte[SEGMENT_BYTES];
+            random.nextBytes(segment);
+            Files.write(segments.resolve("chunk-0-00001.m4s"), segment);
+
+            port = Ports.free();
+            HttpFileServer server = new HttpFileServer(port, videos.toFile());
+            server.serveSegments(segments.getParent().toFile(), new SegmentCache(256L << 20));
+            server.start();
+            Ports.awaitListening(port);
+            path = source.equals("file")
+                ? "/bench-720p.mp4" : "/" + HttpFileServer.SEGMENT_PREFIX + "bench/chunk-0-00001.m4s";
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            TempFolders.delete(root);
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Connection {
+        public long bytes;
+
+        SocketChannel channel;
+        ByteBuffer request;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        final byte[] head = new byte[4096];
+
+        @Setup(Level.Iteration)
+        public void connect(Server server) throws IOException {
+            channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.port));
+            request = ByteBuffer.wrap(("GET " + server.path + " HTTP/1.1\r\nHost: bench\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        @TearDown(Level.Iteration)
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // one full response on the connection's keep-alive socket
+    @Benchmark
+    public long get(Connection connection) throws IOException {
+        ByteBuffer buffer = connection.buffer;
+        connection.request.rewind();
+        while (connection.request.hasRemaining()) {
+            connection.channel.write(connection.request);
+        }
+
+        buffer.clear();
+        int headerEnd = -1;
+        while (headerEnd < 0) {
+            if (connection.channel.read(buffer) < 0) throw new IOException("Connection closed in headers");
+            headerEnd = headerEnd(buffer);
+        }
+        int headLength = Math.min(headerEnd, connection.head.length);
+        for (int i = 0; i < headLength; i++) {
+            connection.head[i] = buffer.get(i);
+        }
+        long body = contentLength(new String(connection.head, 0, headLength, StandardCharsets.ISO_8859_1));
+        long remaining = body - (buffer.position() - headerEnd);
+        while (remaining > 0) {
+            buffer.clear();
+            int read = connection.channel.read(buffer);
+            if (read < 0) throw new IOException("Connection closed in body");
+            remaining -= read;
+        }
+        connection.bytes += body;
+        return body;
+    }
+
+    // Offset just past the blank line ending the headers, or -1
+    private static int headerEnd(ByteBuffer buffer) {
+        for (int i = 3; i < buffer.position(); i++) {
+            if (buffer.get(i - 3) == '\r' && buffer.get(i - 2) == '\n' && buffer.get(i - 1) == '\r'
+                && buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static long contentLength(String head) throws IOException {
+        for (String line : head.split("\r\n")) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                return Long.parseLong(line.substring(15).trim());
+            }
+        }
+        throw new IOException("No Content-Length in " + head);
+    }
+}
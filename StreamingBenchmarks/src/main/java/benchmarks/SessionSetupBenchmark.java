@@ -0,0 +1,131 @@
+package benchmarks;
+
+import Server.CatalogEntry;
+import Server.ServerMain;
+import client.ControlClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+// STREAM until the client can start its player, per protocol, against the real server with a stub
+// encoder: it prints an SDP when asked for RTP and then idles, so only the server's own work is timed.
+// Each fork starts one server; its ports and folders come from system properties.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionSetupBenchmark {
+    private static final String VIDEO = "bench.mp4";
+    private static final String STUB_ENCODER = "#!/bin/sh\n"
+        + "case \"$*\" in\n"
+        + "  *rtp://*) printf 'SDP:\\nv=0\\no=- 0 0 IN IP4 127.0.0.1\\ns=bench\\nc=IN IP4 127.0.0.1\\nt=0 0\\n"
+        + "m=video 0 RTP/AVP 96\\na=rtpmap:96 H264/90000\\n\\n' ;;\n"
+        + "esac\n"
+        + "exec sleep 3600\n";
+
+    @Param({"udp", "tcp", "rtp"})
+    public String protocol;
+
+    private Path root;
+    private ControlClient client;
+    private String sessionId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("session-bench");
+        Path videos = Files.createDirectories(root.resolve("videos"));
+        File video = Files.write(videos.resolve(VIDEO), new byte[4096]).toFile();
+        // already probed, so the catalog never runs the stub as ffprobe
+        Files.write(videos.resolve(".catalog"), Collections.singletonList(new CatalogEntry(VIDEO, video.length(),
+            video.lastModified(), 600, 2_800_000, 1280, 720, "mp4", "h264", true).toLine()), StandardCharsets.UTF_8);
+        Path encoder = Files.write(root.resolve("encoder.sh"), STUB_ENCODER.getBytes(StandardCharsets.US_ASCII));
+        if (!encoder.toFile().setExecutable(true)) {
+            throw new IllegalStateException("Cannot make " + encoder + " executable");
+        }
+
+        int controlPort = Ports.free();
+        System.setProperty("streaming.controlPort", String.valueOf(controlPort));
+        System.setProperty("streaming.httpPort", String.valueOf(Ports.free()));
+        System.setProperty("streaming.probePort", String.valueOf(Ports.free()));
+        System.setProperty("streaming.portBase", "42000");
+        System.setProperty("streaming.videoFolder", videos.toString());
+        System.setProperty("streaming.segmentFolder", root.resolve("segments").toString());
+        System.setProperty("streaming.ffmpeg", encoder.toString());
+        System.setProperty("streaming.ffprobe", encoder.toString());
+        // the original is streamed as is: no renditions, no background transcoding
+        System.setProperty("streaming.lazyRenditions", "true");
+        System.setProperty("streaming.adaptive", "false");
+
+        Thread server = new Thread(() -> ServerMain.main(new String[0]), "bench-server");
+        server.setDaemon(true);
+        server.start();
+        Ports.awaitListening(controlPort);
+        client = new ControlClient("127.0.0.1", controlPort);
+    }
+
+    @TearDown(Level.Invocation)
+    public void stop() throws IOException {
+        if (sessionId != null) {
+            client.call(out -> {
+                out.writeUTF("STOP");
+                out.writeUTF(sessionId);
+            }).readUTF();
+            sessionId = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        TempFolders.delete(root);
+    }
+
+    @Benchmark
+    public String setUpSession() throws IOException {
+        DataInputStream reply = client.call(out -> {
+            out.writeUTF("STREAM");
+            out.writeUTF(VIDEO);
+            out.writeUTF("127.0.0.1");
+            out.writeUTF(protocol);
+            out.writeDouble(100);
+        });
+        String status = reply.readUTF();
+        if (!status.equals("OK")) {
+            throw new IllegalStateException("STREAM failed: " + reply.readUTF());
+        }
+        sessionId = reply.readUTF();
+        int port = reply.readInt();
+        if (protocol.equals("rtp")) {
+            while (!reply.readUTF().equals("END_SDP")) {
+                // the player needs the whole description
+            }
+        } else if (protocol.equals("tcp")) {
+            // a TCP session is ready for the player once it has connected
+            SocketChannel.open(new InetSocketAddress("127.0.0.1", port)).close();
+        }
+        return sessionId;
+    }
+}
@@ -0,0 +1,114 @@
+package client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+// Measures the path to the streaming server: RTT from the PROBE round trip and the probe-port
+// connect, sustained throughput from a short burst with its TCP ramp-up discarded.
+public class BandwidthProbe {
+    // share of the run treated as ramp-up and left out of the throughput
+    private static final double RAMP_SHARE = 0.3;
+
+    public static class Result {
+        private final double rttMillis;
+        private final double mbps;
+        private final long bytes;
+
+        Result(double rttMillis, double mbps, long bytes) {
+            this.rttMillis = rttMillis;
+            this.mbps = mbps;
+            this.bytes = bytes;
+        }
+
+        public double getRttMillis() {
+            return rttMillis;
+        }
+
+        public double getMbps() {
+            return mbps;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.2f Mbps, RTT %.1f ms", mbps, rttMillis);
+        }
+    }
+
+    private final ControlClient control;
+    private final String host;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    public BandwidthProbe(ControlClient control, String host) {
+        this.control = control;
+        this.host = host;
+    }
+
+    public ControlClient getControl() {
+        return control;
+    }
+
+    // durationMillis is capped by the server, currently at one second
+    public synchronized Result measure(int durationMillis) throws IOException {
+        long requested = System.nanoTime();
+        DataInputStream reply = control.call(dos -> dos.writeUTF("PROBE"));
+        double rttMillis = (System.nanoTime() - requested) / 1e6;
+        String status = reply.readUTF();
+        if (!status.equals("OK")) {
+            throw new IOException("Probe refused: " + status);
+        }
+        int port = reply.readInt();
+        long token = reply.readLong();
+        int duration = Math.min(durationMillis, reply.readInt());
+
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(1 << 20);
+            long connecting = System.nanoTime();
+            socket.connect(new InetSocketAddress(host, port), 5000);
+            // a TCP handshake is one round trip without any server-side work
+            rttMillis = Math.min(rttMillis, (System.nanoTime() - connecting) / 1e6);
+            socket.setSoTimeout(duration + 5000);
+
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeLong(token);
+            out.writeInt(duration);
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            long start = System.nanoTime();
+            long rampEnd = start + (long) (duration * RAMP_SHARE * 1_000_000L);
+            long total = 0;
+            long afterRamp = 0;
+            long measuredFrom = 0;
+            long last = start;
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                last = System.nanoTime();
+                total += read;
+                if (last >= rampEnd) {
+                    if (measuredFrom == 0) {
+                        measuredFrom = last;
+                    } else {
+                        afterRamp += read;
+                    }
+                }
+            }
+
+            double mbps;
+            if (measuredFrom != 0 && last > measuredFrom) {
+                mbps = afterRamp * 8.0 / ((last - measuredFrom) / 1e3);
+            } else {
+                // too little data to separate the ramp; use the whole run
+                mbps = total * 8.0 / (Math.max(1, last - start) / 1e3);
+            }
+            return new Result(rttMillis, mbps, total);
+        }
+    }
+}
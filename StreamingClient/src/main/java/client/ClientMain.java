@@ -1,10 +1,5 @@
 package client;
 
-import fr.bmartel.speedtest.SpeedTestReport;
-import fr.bmartel.speedtest.SpeedTestSocket;
-import fr.bmartel.speedtest.inter.ISpeedTestListener;
-import fr.bmartel.speedtest.model.SpeedTestError;
-
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
@@ -14,11 +9,23 @@ import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class ClientMain extends JFrame {
+    private static final String SERVER_HOST = "localhost";
+    private static final int SERVER_PORT = 9000;
+    private static final int INITIAL_PROBE_MILLIS = 750;
+    // shorter during playback, where the probe competes with the stream
+    private static final int PLAYBACK_PROBE_MILLIS = 300;
+    private static final int PLAYBACK_PROBE_INTERVAL_SECONDS = 30;
+
     private JComboBox<String> videoList;
     private JButton fetchButton;
     private JButton streamButton;
+    private JButton stopButton;
     private JCheckBox bufferingCheckBox;
     private JComboBox<String> protocolComboBox;
     private JTextArea statsTextArea;
@@ -27,6 +34,14 @@ public class ClientMain extends JFrame {
     private String currentVideo;
     private String currentProtocol;
     private double downloadSpeedMbps = 5.0; 
+    private volatile Process ffplayProcess;
+    private ControlClient control;
+    private BandwidthProbe probe;
+    private final ScheduledExecutorService probeTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "playback-probe");
+        t.setDaemon(true);
+        return t;
+    });
 
     public ClientMain() {
         setTitle("Streaming Client");
@@ -39,8 +54,9 @@ public class ClientMain extends JFrame {
         videoList = new JComboBox<>();
         fetchButton = new JButton("Fetch Video List");
         streamButton = new JButton("Start Streaming");
+        stopButton = new JButton("Stop");
         bufferingCheckBox = new JCheckBox("Enable Buffering");
-        protocolComboBox = new JComboBox<>(new String[]{"UDP", "TCP", "RTP"});
+        protocolComboBox = new JComboBox<>(new String[]{"UDP", "TCP", "RTP", "HTTP", "HLS", "DASH"});
         speedLabel = new JLabel("Connection Speed: Testing...");
 
         controlPanel.add(fetchButton);
@@ -49,6 +65,7 @@ public class ClientMain extends JFrame {
         controlPanel.add(new JLabel("Protocol:"));
         controlPanel.add(protocolComboBox);
         controlPanel.add(streamButton);
+        controlPanel.add(stopButton);
         controlPanel.add(speedLabel);
 
         // Stats panel
@@ -63,6 +80,7 @@ public class ClientMain extends JFrame {
 
         fetchButton.addActionListener(this::fetchVideoList);
         streamButton.addActionListener(this::startStreaming);
+        stopButton.addActionListener(this::stopStreaming);
 
         setVisible(true);
 
@@ -70,114 +88,49 @@ public class ClientMain extends JFrame {
         runSpeedTest();
     }
 
+    // Measures the path to our own server rather than to the public internet
     private void runSpeedTest() {
-        updateStats("Starting network speed test...");
+        updateStats("Probing connection to the streaming server...");
         speedLabel.setText("Connection Speed: Testing...");
 
         new Thread(() -> {
             try {
-                SpeedTestSocket speedTestSocket = new SpeedTestSocket();
-                speedTestSocket.setSocketTimeout(5000); 
-
-                speedTestSocket.addSpeedTestListener(new ISpeedTestListener() {
-                    @Override
-                    public void onCompletion(SpeedTestReport report) {
-                        downloadSpeedMbps = report.getTransferRateBit().doubleValue() / 1000000;
-                        SwingUtilities.invokeLater(() -> {
-                            speedLabel.setText(String.format("Connection Speed: %.2f Mbps", downloadSpeedMbps));
-                            updateStats(String.format("Network speed test completed: %.2f Mbps", downloadSpeedMbps));
-                            suggestOptimalSettings();
-                        });
-                    }
-
-                    @Override
-                    public void onError(SpeedTestError speedTestError, String errorMessage) {
-                        SwingUtilities.invokeLater(() -> {
-                            updateStats("Primary speed test failed: " + errorMessage);
-                            tryFallbackSpeedTest();
-                        });
-                    }
-
-                    @Override
-                    public void onProgress(float percent, SpeedTestReport report) {
-                       
-                    }
+                BandwidthProbe.Result result = getProbe().measure(INITIAL_PROBE_MILLIS);
+                downloadSpeedMbps = result.getMbps();
+                SwingUtilities.invokeLater(() -> {
+                    speedLabel.setText("Connection Speed: " + result);
+                    updateStats("Bandwidth probe completed: " + result);
+                    suggestOptimalSettings();
                 });
-
-               
-                speedTestSocket.startDownload("http://ipv4.ikoula.testdebit.info/10M.iso", 5000);
-
-            } catch (Exception e) {
+            } catch (IOException e) {
                 SwingUtilities.invokeLater(() -> {
-                    updateStats("Speed test initialization failed: " + e.getMessage());
-                    tryFallbackSpeedTest();
+                    speedLabel.setText("Connection Speed: Unknown");
+                    updateStats("Bandwidth probe failed: " + e.getMessage() + ". Using default speed (5 Mbps).");
+                    downloadSpeedMbps = 5.0;
+                    suggestOptimalSettings();
                 });
             }
-        }).start();
+        }, "bandwidth-probe").start();
     }
 
-    private void tryFallbackSpeedTest() {
-        new Thread(() -> {
+    // Short probes while a stream plays keep the server's rendition choice current
+    private ScheduledFuture<?> startPlaybackProbes(String sessionId) {
+        return probeTimer.scheduleWithFixedDelay(() -> {
             try {
-                SpeedTestSocket speedTestSocket = new SpeedTestSocket();
-                speedTestSocket.setSocketTimeout(5000);
-                
-                speedTestSocket.addSpeedTestListener(new ISpeedTestListener() {
-                    @Override
-                    public void onCompletion(SpeedTestReport report) {
-                        downloadSpeedMbps = report.getTransferRateBit().doubleValue() / 1000000;
-                        SwingUtilities.invokeLater(() -> {
-                            speedLabel.setText(String.format("Connection Speed: %.2f Mbps", downloadSpeedMbps));
-                            updateStats(String.format("Fallback speed test completed: %.2f Mbps", downloadSpeedMbps));
-                            suggestOptimalSettings();
-                        });
-                    }
-
-                    @Override
-                    public void onError(SpeedTestError speedTestError, String errorMessage) {
-                        SwingUtilities.invokeLater(() -> {
-                            speedLabel.setText("Connection Speed: Unknown");
-                            updateStats("All speed test servers failed. Using default speed (5 Mbps).");
-                            downloadSpeedMbps = 5.0;
-                            suggestOptimalSettings();
-                        });
-                    }
-
-                    @Override
-                    public void onProgress(float percent, SpeedTestReport report) {
-                      
-                    }
-                });
-
-                //alternative test servers
-                String[] fallbackServers = {
-                    "http://speedtest.tele2.net/10MB.zip",
-                    "http://test.belwue.net/100M",
-                    "http://speedtest.fremont.linode.com/100MB-fremont.bin"
-                };
-
-                for (String server : fallbackServers) {
-                    try {
-                        updateStats("Trying fallback server: " + server);
-                        speedTestSocket.startDownload(server, 5000);
-                        return; 
-                    } catch (Exception e) {
-                        updateStats("Fallback server failed: " + server);
-                    }
-                }
-                
-                throw new Exception("All fallback servers failed");
-
-            } catch (Exception e) {
-                SwingUtilities.invokeLater(() -> {
-                    speedLabel.setText("Connection Speed: Unknown");
-                    updateStats("All speed test attempts failed: " + e.getMessage());
-                    downloadSpeedMbps = 5.0; // Default to 5 Mbps
-                    suggestOptimalSettings();
+                BandwidthProbe.Result result = getProbe().measure(PLAYBACK_PROBE_MILLIS);
+                downloadSpeedMbps = result.getMbps();
+                getControl().request(dos -> {
+                    dos.writeUTF("REPORT");
+                    dos.writeUTF(sessionId);
+                    dos.writeDouble(result.getMbps());
                 });
+                SwingUtilities.invokeLater(() -> speedLabel.setText("Connection Speed: " + result));
+            } catch (IOException e) {
+                updateStats("Bandwidth probe failed: " + e.getMessage());
             }
-        }).start();
+        }, PLAYBACK_PROBE_INTERVAL_SECONDS, PLAYBACK_PROBE_INTERVAL_SECONDS, TimeUnit.SECONDS);
     }
+
     // 
     private void suggestOptimalSettings() {
         String suggestion;
@@ -202,12 +155,25 @@ public class ClientMain extends JFrame {
         }
     }
 
-    private void fetchVideoList(ActionEvent e) {
-        try (Socket socket = new Socket("localhost", 9000);
-             DataInputStream dis = new DataInputStream(socket.getInputStream());
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
+    // One connection reused for every request
+    private synchronized ControlClient getControl() throws IOException {
+        if (control == null || !control.isOpen()) {
+            control = new ControlClient(SERVER_HOST, SERVER_PORT);
+        }
+        return control;
+    }
+
+    private synchronized BandwidthProbe getProbe() throws IOException {
+        ControlClient current = getControl();
+        if (probe == null || probe.getControl() != current) {
+            probe = new BandwidthProbe(current, SERVER_HOST);
+        }
+        return probe;
+    }
 
-            dos.writeUTF("LIST");
+    private void fetchVideoList(ActionEvent e) {
+        try {
+            DataInputStream dis = getControl().call(dos -> dos.writeUTF("LIST"));
 
             int count = dis.readInt();
             videoList.removeAllItems();
@@ -231,33 +197,60 @@ public class ClientMain extends JFrame {
 
         updateStats(String.format("Starting stream with current network speed: %.2f Mbps", downloadSpeedMbps));
 
-        String urlPrefix;
-        switch (currentProtocol.toUpperCase()) {
-            case "TCP":
-                urlPrefix = "tcp://127.0.0.1:1234";
-                break;
-            case "RTP":
-                urlPrefix = ""; 
-                break;
-            default:
-                urlPrefix = "udp://127.0.0.1:1234";
-        }
-
         streamStartTime = System.currentTimeMillis();
         updateStats("Stream started: " + currentVideo + " (" + currentProtocol + ")");
         updateStats("Buffering: " + (bufferingCheckBox.isSelected() ? "Enabled" : "Disabled"));
         updateStats("Start time: " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(streamStartTime)));
 
         new Thread(() -> {
-            try (Socket socket = new Socket("localhost", 9000);
-                 DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                 DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+            try {
+                ControlClient control = getControl();
+                String localIP = getLocalIPAddress();
+                long requestedAt = System.currentTimeMillis();
+                DataInputStream dis = control.call(dos -> {
+                    dos.writeUTF("STREAM");
+                    dos.writeUTF(selected);
+                    dos.writeUTF(localIP);
+                    dos.writeUTF(currentProtocol);
+                    dos.writeDouble(downloadSpeedMbps); 
+                });
 
-                dos.writeUTF("STREAM");
-                dos.writeUTF(selected);
-                dos.writeUTF(getLocalIPAddress());
-                dos.writeUTF(currentProtocol);
-                dos.writeDouble(downloadSpeedMbps); 
+                // the server allocates a port per session
+                String status = dis.readUTF();
+                if (status.equals("BUSY")) {
+                    // no encoder free right now; nothing was started on the server
+                    int retryAfter = dis.readInt();
+                    String reason = dis.readUTF();
+                    updateStats("Server busy (" + reason + "), retry in " + retryAfter + " s");
+                    JOptionPane.showMessageDialog(this, "The server is busy: " + reason
+                            + "\nPlease try again in " + retryAfter + " seconds.", "Server Busy",
+                        JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+                if (!status.equals("OK")) {
+                    throw new IOException("Server refused stream: " + dis.readUTF());
+                }
+                String sessionId = dis.readUTF();
+                int streamPort = dis.readInt();
+                updateStats("Session " + sessionId + " on port " + streamPort);
+
+                String urlPrefix;
+                switch (currentProtocol.toUpperCase()) {
+                    case "TCP":
+                        urlPrefix = "tcp://127.0.0.1:" + streamPort;
+                        break;
+                    case "RTP":
+                        urlPrefix = ""; 
+                        break;
+                    case "HTTP":
+                    case "HLS":
+                    case "DASH":
+                        // progressive download with byte ranges, or a manifest of segments, served over HTTP
+                        urlPrefix = "http://" + SERVER_HOST + ":" + streamPort + "/" + encodePath(dis.readUTF());
+                        break;
+                    default:
+                        urlPrefix = "udp://127.0.0.1:" + streamPort;
+                }
 
                 ArrayList<String> command = new ArrayList<>();
                 command.add("ffplay");
@@ -315,11 +308,18 @@ public class ClientMain extends JFrame {
                 ProcessBuilder pb = new ProcessBuilder(command);
                 pb.redirectErrorStream(true);
                 Process process = pb.start();
+                ffplayProcess = process;
+                ScheduledFuture<?> probes = startPlaybackProbes(sessionId);
 
                 new Thread(() -> {
                     try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
                         String line;
+                        boolean firstFrame = false;
                         while ((line = reader.readLine()) != null) {
+                            if (!firstFrame && isPlaybackClock(line)) {
+                                firstFrame = true;
+                                reportFirstFrame(sessionId, System.currentTimeMillis() - requestedAt);
+                            }
                             if (line.contains("bitrate=") || line.contains("fps=") || line.contains("speed=")) {
                                 updateStats(line.trim());
                             }
@@ -330,7 +330,15 @@ public class ClientMain extends JFrame {
                 }).start();
 
                 int exitCode = process.waitFor();
+                ffplayProcess = null;
+                probes.cancel(false);
                 long streamEndTime = System.currentTimeMillis();
+
+                // release the server side encoder and ports
+                control.call(dos -> {
+                    dos.writeUTF("STOP");
+                    dos.writeUTF(sessionId);
+                });
                 long duration = (streamEndTime - streamStartTime) / 1000;
                 
                 updateStats("FFplay exited with code: " + exitCode);
@@ -351,6 +359,41 @@ public class ClientMain extends JFrame {
         }).start();
     }
 
+    // ffplay's status line starts with the master clock once frames are being shown; it reads nan before
+    private static boolean isPlaybackClock(String line) {
+        String trimmed = line.trim();
+        int space = trimmed.indexOf(' ');
+        if (space <= 0 || !(trimmed.contains("M-V:") || trimmed.contains("M-A:") || trimmed.contains("A-V:"))) {
+            return false;
+        }
+        try {
+            return !Double.isNaN(Double.parseDouble(trimmed.substring(0, space)));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private void reportFirstFrame(String sessionId, long millis) {
+        updateStats("Time to first frame: " + millis + " ms");
+        try {
+            getControl().request(dos -> {
+                dos.writeUTF("FIRSTFRAME");
+                dos.writeUTF(sessionId);
+                dos.writeLong(millis);
+            });
+        } catch (IOException e) {
+            updateStats("Could not report first frame: " + e.getMessage());
+        }
+    }
+
+    private void stopStreaming(ActionEvent e) {
+        Process process = ffplayProcess;
+        if (process != null) {
+            updateStats("Stopping stream...");
+            process.destroy();
+        }
+    }
+
     private void updateStats(String message) {
         SwingUtilities.invokeLater(() -> {
             statsTextArea.append(message + "\n");
@@ -358,6 +401,16 @@ public class ClientMain extends JFrame {
         });
     }
 
+    // Encodes each path segment, keeping the slashes so relative manifest entries resolve
+    private static String encodePath(String path) throws UnsupportedEncodingException {
+        StringBuilder encoded = new StringBuilder();
+        for (String segment : path.split("/")) {
+            if (encoded.length() > 0) encoded.append('/');
+            encoded.append(URLEncoder.encode(segment, "UTF-8").replace("+", "%20"));
+        }
+        return encoded.toString();
+    }
+
     private String getLocalIPAddress() throws IOException {
         try (DatagramSocket socket = new DatagramSocket()) {
             socket.connect(InetAddress.getByName("8.8.8.8"), 10002);
@@ -0,0 +1,114 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Persistent control connection. Frames are: int length (of what follows), int correlation id, payload;
+// several requests may be in flight and responses are matched back by id.
+public class ControlClient implements Closeable {
+    public interface RequestBody {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final Map<Integer, CompletableFuture<DataInputStream>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger correlationIds = new AtomicInteger();
+    private volatile boolean open = true;
+
+    public ControlClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        Thread reader = new Thread(this::readLoop, "control-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public CompletableFuture<DataInputStream> request(RequestBody body) {
+        CompletableFuture<DataInputStream> response = new CompletableFuture<>();
+        int correlationId = correlationIds.incrementAndGet();
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            body.write(new DataOutputStream(payload));
+
+            pending.put(correlationId, response);
+            synchronized (out) {
+                out.writeInt(4 + payload.size());
+                out.writeInt(correlationId);
+                payload.writeTo(out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            pending.remove(correlationId);
+            response.completeExceptionally(e);
+        }
+        return response;
+    }
+
+    // Blocking form of request()
+    public DataInputStream call(RequestBody body) throws IOException {
+        try {
+            return request(body).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for server", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private void readLoop() {
+        IOException failure;
+        try {
+            while (true) {
+                int length = in.readInt();
+                int correlationId = in.readInt();
+                byte[] payload = new byte[length - 4];
+                in.readFully(payload);
+                CompletableFuture<DataInputStream> response = pending.remove(correlationId);
+                if (response != null) {
+                    response.complete(new DataInputStream(new ByteArrayInputStream(payload)));
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        open = false;
+        for (CompletableFuture<DataInputStream> response : pending.values()) {
+            response.completeExceptionally(new IOException("Connection to server lost", failure));
+        }
+        pending.clear();
+    }
+
+    // Address the server sees this client at, on the interface the connection uses
+    public String getLocalAddress() {
+        return socket.getLocalAddress().getHostAddress();
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        socket.close();
+    }
+}
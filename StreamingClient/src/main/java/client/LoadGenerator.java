@@ -0,0 +1,312 @@
+package client;
+
+import java.io.DataInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Headless viewers for finding the server's ceiling. Sessions arrive at a given rate with a given protocol
+// mix, receive in-process for a while and stop; setup latency, throughput, loss and failures are reported.
+//
+//   java -cp StreamingClient.jar client.LoadGenerator --sessions 2000 --rate 50 --watch 60 --mix udp=6,tcp=3,rtp=1
+public class LoadGenerator {
+    private static final int REPORT_INTERVAL_SECONDS = 5;
+
+    private String host = "localhost";
+    private int port = 9000;
+    private int sessions = 100;
+    private double rate = 10;
+    private int watchSeconds = 30;
+    private int connections = 64;
+    private double reportedMbps = 100;
+    private boolean verify;
+    private String jsonFile;
+    private List<String> videos = new ArrayList<>();
+    private final Map<String, Integer> mix = new LinkedHashMap<>();
+
+    private final List<Long> setupNanos = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> firstByteNanos = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger started = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger busy = new AtomicInteger();
+    private final AtomicInteger refused = new AtomicInteger();
+    private final AtomicInteger noData = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong packets = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Options: --host H --port P --sessions N --rate PER_SECOND --watch SECONDS"
+                + " --mix udp=W,tcp=W,rtp=W --video NAME[,NAME...] --connections N --mbps REPORTED"
+                + " --verify --json FILE");
+            System.exit(2);
+        }
+        generator.run();
+    }
+
+    private void parse(String[] args) {
+        mix.put("udp", 1);
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--verify")) {
+                verify = true;
+                continue;
+            }
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + option);
+            String value = args[++i];
+            switch (option) {
+                case "--host": host = value; break;
+                case "--port": port = Integer.parseInt(value); break;
+                case "--sessions": sessions = Integer.parseInt(value); break;
+                case "--rate": rate = Double.parseDouble(value); break;
+                case "--watch": watchSeconds = Integer.parseInt(value); break;
+                case "--connections": connections = Math.max(1, Integer.parseInt(value)); break;
+                case "--mbps": reportedMbps = Double.parseDouble(value); break;
+                case "--json": jsonFile = value; break;
+                case "--video": videos = Arrays.asList(value.split(",")); break;
+                case "--mix":
+                    mix.clear();
+                    for (String part : value.split(",")) {
+                        String[] weight = part.split("=");
+                        String protocol = weight[0].trim().toLowerCase(Locale.ROOT);
+                        if (!Arrays.asList("udp", "tcp", "rtp").contains(protocol)) {
+                            throw new IllegalArgumentException("Unsupported protocol in mix: " + protocol);
+                        }
+                        mix.put(protocol, weight.length > 1 ? Integer.parseInt(weight[1].trim()) : 1);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        List<ControlClient> controls = new ArrayList<>();
+        for (int i = 0; i < Math.min(connections, sessions); i++) {
+            controls.add(new ControlClient(host, port));
+        }
+        if (videos.isEmpty()) {
+            DataInputStream list = controls.get(0).call(dos -> dos.writeUTF("LIST"));
+            int count = list.readInt();
+            for (int i = 0; i < count; i++) {
+                videos.add(list.readUTF());
+            }
+            if (videos.isEmpty()) throw new IllegalStateException("Server lists no videos");
+        }
+
+        ExecutorService viewers = viewerThreads();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "load-report");
+            t.setDaemon(true);
+            return t;
+        });
+        long begin = System.nanoTime();
+        reporter.scheduleAtFixedRate(() -> progress(begin), REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS,
+            TimeUnit.SECONDS);
+
+        // Poisson arrivals at the requested rate
+        Random random = new Random();
+        long next = System.nanoTime();
+        for (int n = 0; n < sessions; n++) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            next += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+            ControlClient control = controls.get(n % controls.size());
+            String protocol = pickProtocol(random);
+            String video = videos.get(random.nextInt(videos.size()));
+            viewers.execute(() -> view(control, protocol, video));
+        }
+        viewers.shutdown();
+        viewers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        reporter.shutdownNow();
+        long elapsed = System.nanoTime() - begin;
+
+        for (ControlClient control : controls) {
+            control.close();
+        }
+        String summary = summary(elapsed);
+        System.out.println(summary);
+        if (jsonFile != null) {
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(jsonFile), StandardCharsets.UTF_8)) {
+                out.write(json(elapsed));
+            }
+            System.out.println("Results written to " + jsonFile);
+        }
+    }
+
+    // Virtual threads where the runtime has them (Java 21+), else small-stack platform threads.
+    // Looked up reflectively so the client still builds and runs on Java 8.
+    private static ExecutorService viewerThreads() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            System.out.println("Viewers run on virtual threads");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Viewers run on platform threads (virtual threads need Java 21)");
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(null, r, "viewer-" + count.incrementAndGet(), 256 * 1024);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private String pickProtocol(Random random) {
+        int total = 0;
+        for (int weight : mix.values()) total += weight;
+        int pick = random.nextInt(Math.max(1, total));
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            pick -= entry.getValue();
+            if (pick < 0) return entry.getKey();
+        }
+        return "udp";
+    }
+
+    // One viewer: STREAM, receive for the watch time, STOP
+    private void view(ControlClient control, String protocol, String video) {
+        started.incrementAndGet();
+        active.incrementAndGet();
+        String sessionId = null;
+        try {
+            long requested = System.nanoTime();
+            DataInputStream reply = control.call(dos -> {
+                dos.writeUTF("STREAM");
+                dos.writeUTF(video);
+                dos.writeUTF(control.getLocalAddress());
+                dos.writeUTF(protocol);
+                dos.writeDouble(reportedMbps);
+            });
+            String status = reply.readUTF();
+            if (status.equals("BUSY")) {
+                busy.incrementAndGet();
+                return;
+            }
+            if (!status.equals("OK")) {
+                refused.incrementAndGet();
+                return;
+            }
+            sessionId = reply.readUTF();
+            int mediaPort = reply.readInt();
+            if (protocol.equals("rtp")) {
+                while (!reply.readUTF().equals("END_SDP")) {
+                    // the SDP only matters to a real player
+                }
+            }
+            setupNanos.add(System.nanoTime() - requested);
+
+            MediaReceiver receiver = new MediaReceiver(protocol, verify);
+            try {
+                receiver.receive(host, mediaPort, System.nanoTime() + TimeUnit.SECONDS.toNanos(watchSeconds));
+            } finally {
+                bytes.addAndGet(receiver.getBytes());
+                packets.addAndGet(receiver.getPackets());
+                lost.addAndGet(receiver.getLost());
+            }
+            if (receiver.getFirstByteNanos() == 0) {
+                noData.incrementAndGet();
+            } else {
+                firstByteNanos.add(receiver.getFirstByteNanos() - requested);
+                completed.incrementAndGet();
+            }
+        } catch (IOException e) {
+            failed.incrementAndGet();
+        } finally {
+            active.decrementAndGet();
+            if (sessionId != null) {
+                String id = sessionId;
+                control.request(dos -> {
+                    dos.writeUTF("STOP");
+                    dos.writeUTF(id);
+                });
+            }
+        }
+    }
+
+    private void progress(long begin) {
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        System.out.printf(Locale.ROOT, "%6.0fs  started=%d active=%d ok=%d busy=%d failed=%d  %.1f Mbps%n",
+            seconds, started.get(), active.get(), completed.get(), busy.get(),
+            refused.get() + noData.get() + failed.get(), bytes.get() * 8 / seconds / 1e6);
+    }
+
+    private String summary(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long total = packets.get() + lost.get();
+        return String.format(Locale.ROOT, "----- Load summary -----%n"
+                + "Sessions:     %d started, %d received media%n"
+                + "Failed:       %d busy, %d refused, %d without data, %d errors%n"
+                + "Setup:        %s%n"
+                + "First byte:   %s%n"
+                + "Throughput:   %.1f Mbps over %.0f s (%d bytes)%n"
+                + "Packet loss:  %.3f%% (%d of %d)",
+            started.get(), completed.get(), busy.get(), refused.get(), noData.get(), failed.get(),
+            describe(setupNanos), describe(firstByteNanos), bytes.get() * 8 / seconds / 1e6, seconds, bytes.get(),
+            total == 0 ? 0 : lost.get() * 100.0 / total, lost.get(), total);
+    }
+
+    private static String describe(List<Long> samples) {
+        long[] sorted = sorted(samples);
+        if (sorted.length == 0) return "no samples";
+        return String.format(Locale.ROOT, "p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms (n=%d)",
+            percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+            sorted[sorted.length - 1] / 1e6, sorted.length);
+    }
+
+    private String json(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long[] setup = sorted(setupNanos);
+        long[] firstByte = sorted(firstByteNanos);
+        return String.format(Locale.ROOT, "{\"sessions\": %d, \"received\": %d, \"busy\": %d, \"refused\": %d,"
+                + " \"noData\": %d, \"errors\": %d, \"elapsedSeconds\": %.3f, \"bytes\": %d, \"mbps\": %.3f,"
+                + " \"packets\": %d, \"lostPackets\": %d,"
+                + " \"setupMillis\": {\"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f},"
+                + " \"firstByteMillis\": {\"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f}}%n",
+            started.get(), completed.get(), busy.get(), refused.get(), noData.get(), failed.get(), seconds,
+            bytes.get(), bytes.get() * 8 / seconds / 1e6, packets.get(), lost.get(),
+            percentile(setup, 0.5), percentile(setup, 0.9), percentile(setup, 0.99),
+            percentile(firstByte, 0.5), percentile(firstByte, 0.9), percentile(firstByte, 0.99));
+    }
+
+    private static long[] sorted(List<Long> samples) {
+        long[] values;
+        synchronized (samples) {
+            values = new long[samples.size()];
+            for (int i = 0; i < values.length; i++) values[i] = samples.get(i);
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    // Nearest-rank percentile, in milliseconds
+    private static double percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) return 0;
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))] / 1e6;
+    }
+}
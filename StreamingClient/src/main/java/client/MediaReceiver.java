@@ -0,0 +1,171 @@
+package client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.zip.CRC32;
+
+// In-process stand-in for ffplay: receives one session's media, counts it and either discards it or
+// checksums it. Loss comes from MPEG-TS continuity counters (UDP/TCP) or RTP sequence numbers.
+public class MediaReceiver {
+    private static final int TS_PACKET = 188;
+    private static final int MAX_PIDS = 16;
+    private static final int POLL_MILLIS = 500;
+
+    private final String protocol;
+    private final CRC32 checksum;
+    private final byte[] buffer;
+
+    private long bytes;
+    private long packets;
+    private long lost;
+    private long firstByteNanos;
+
+    // MPEG-TS: continuity counters of the PIDs carrying audio/video
+    private final int[] pids = new int[MAX_PIDS];
+    private final int[] counters = new int[MAX_PIDS];
+    private final boolean[] elementary = new boolean[MAX_PIDS];
+    private int pidCount;
+
+    // RTP: next expected sequence number, -1 before the first packet
+    private int expectedSequence = -1;
+
+    public MediaReceiver(String protocol, boolean verify) {
+        this.protocol = protocol;
+        this.checksum = verify ? new CRC32() : null;
+        this.buffer = new byte[protocol.equals("tcp") ? 64 * 1024 : 2048];
+    }
+
+    // Receives until deadlineNanos (System.nanoTime); UDP and RTP listen on port, TCP connects to host:port
+    public void receive(String host, int port, long deadlineNanos) throws IOException {
+        if (protocol.equals("tcp")) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), 5000);
+                socket.setSoTimeout(POLL_MILLIS);
+                InputStream in = socket.getInputStream();
+                // a partial packet waits at the start of the buffer for the rest of it
+                int carried = 0;
+                while (System.nanoTime() < deadlineNanos) {
+                    int read;
+                    try {
+                        read = in.read(buffer, carried, buffer.length - carried);
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    if (read < 0) break;
+                    received(carried, read);
+                    int available = carried + read;
+                    int whole = available - available % TS_PACKET;
+                    transportStream(buffer, 0, whole);
+                    carried = available - whole;
+                    System.arraycopy(buffer, whole, buffer, 0, carried);
+                }
+            }
+            return;
+        }
+
+        try (DatagramSocket socket = new DatagramSocket(null)) {
+            socket.setReuseAddress(true);
+            socket.setReceiveBufferSize(1 << 20);
+            socket.bind(new InetSocketAddress(port));
+            socket.setSoTimeout(POLL_MILLIS);
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while (System.nanoTime() < deadlineNanos) {
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                received(0, packet.getLength());
+                if (protocol.equals("rtp")) {
+                    rtp(buffer, packet.getLength());
+                } else {
+                    transportStream(buffer, 0, packet.getLength() - packet.getLength() % TS_PACKET);
+                }
+            }
+        }
+    }
+
+    private void received(int offset, int length) {
+        if (firstByteNanos == 0) firstByteNanos = System.nanoTime();
+        bytes += length;
+        if (checksum != null) checksum.update(buffer, offset, length);
+    }
+
+    private void rtp(byte[] data, int length) {
+        if (length < 12) return;
+        packets++;
+        int sequence = ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+        if (expectedSequence >= 0) {
+            int gap = (sequence - expectedSequence) & 0xffff;
+            // a large gap is a late or duplicate packet rather than a loss
+            if (gap >= 0x8000) return;
+            lost += gap;
+        }
+        expectedSequence = (sequence + 1) & 0xffff;
+    }
+
+    // Counts missing packets on audio/video PIDs; PSI tables are repeated by the server on joins, so skipped
+    private void transportStream(byte[] data, int offset, int length) {
+        for (int off = offset; off + TS_PACKET <= offset + length; off += TS_PACKET) {
+            if (data[off] != 0x47) continue;
+            packets++;
+            int pid = ((data[off + 1] & 0x1f) << 8) | (data[off + 2] & 0xff);
+            int adaptation = (data[off + 3] >> 4) & 3;
+            if (pid == 0x1fff || (adaptation & 1) == 0) continue;
+            int counter = data[off + 3] & 0x0f;
+            int payload = off + 4 + ((adaptation & 2) != 0 ? 1 + (data[off + 4] & 0xff) : 0);
+            boolean discontinuity = (adaptation & 2) != 0 && (data[off + 4] & 0xff) > 0
+                && (data[off + 5] & 0x80) != 0;
+            boolean startsPes = (data[off + 1] & 0x40) != 0 && payload + 3 <= off + TS_PACKET
+                && data[payload] == 0 && data[payload + 1] == 0 && data[payload + 2] == 1;
+
+            int slot = slot(pid);
+            if (slot < 0) continue;
+            if (startsPes) elementary[slot] = true;
+            if (counters[slot] >= 0 && elementary[slot] && !discontinuity) {
+                int gap = (counter - counters[slot] - 1) & 0x0f;
+                // a repeated counter is a legal duplicate packet
+                if (counter != counters[slot]) lost += gap;
+            }
+            counters[slot] = counter;
+        }
+    }
+
+    private int slot(int pid) {
+        for (int i = 0; i < pidCount; i++) {
+            if (pids[i] == pid) return i;
+        }
+        if (pidCount == MAX_PIDS) return -1;
+        pids[pidCount] = pid;
+        counters[pidCount] = -1;
+        return pidCount++;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getPackets() {
+        return packets;
+    }
+
+    // TS packets (UDP/TCP) or RTP packets missing
+    public long getLost() {
+        return lost;
+    }
+
+    // 0 until the first byte has arrived
+    public long getFirstByteNanos() {
+        return firstByteNanos;
+    }
+
+    // CRC32 of everything received, or -1 when payload is discarded
+    public long getChecksum() {
+        return checksum == null ? -1 : checksum.getValue();
+    }
+}
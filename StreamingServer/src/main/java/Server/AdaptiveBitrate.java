@@ -0,0 +1,235 @@
+package Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Picks the rendition a viewer's bandwidth can sustain and moves fan-out viewers up or down
+// the ladder as their throughput changes. The rendition the client asked for is the ceiling.
+public class AdaptiveBitrate implements Runnable {
+    private static final Logger logger = LogManager.getLogger(AdaptiveBitrate.class);
+
+    // used until a rendition has been probed, in bits/s
+    private static final Map<String, Long> NOMINAL_BITRATES = new HashMap<>();
+    static {
+        NOMINAL_BITRATES.put("240p", 400_000L);
+        NOMINAL_BITRATES.put("360p", 800_000L);
+        NOMINAL_BITRATES.put("480p", 1_400_000L);
+        NOMINAL_BITRATES.put("720p", 2_800_000L);
+        NOMINAL_BITRATES.put("1080p", 5_000_000L);
+    }
+
+    // share of the estimated bandwidth a rendition may use
+    private static final double HEADROOM = 0.8;
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+    // stepping down reacts quickly, stepping up waits for a stable link
+    private static final long DOWN_HOLD_MILLIS = 3000;
+    private static final long UP_HOLD_MILLIS = 10000;
+
+    private final List<String> ladder;
+    private final Pattern renditionName;
+    private final Function<String, CatalogEntry> catalog;
+    private final Predicate<String> available;
+    private final Function<String, CompletableFuture<File>> resolver;
+    private final FanoutHub hub;
+    private final Map<String, Viewer> viewers = new ConcurrentHashMap<>();
+
+    // ladder: resolutions from lowest to highest; renditionName groups base name, resolution and container
+    public AdaptiveBitrate(List<String> ladder, Pattern renditionName, Function<String, CatalogEntry> catalog,
+                           Predicate<String> available, Function<String, CompletableFuture<File>> resolver,
+                           FanoutHub hub) {
+        this.ladder = ladder;
+        this.renditionName = renditionName;
+        this.catalog = catalog;
+        this.available = available;
+        this.resolver = resolver;
+        this.hub = hub;
+    }
+
+    public void start() {
+        Thread t = new Thread(this, "adaptive-bitrate");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Highest rendition up to the requested one that fits the reported bandwidth
+    public String select(String fileName, double reportedMbps) {
+        Matcher matcher = renditionName.matcher(fileName);
+        if (!matcher.matches() || reportedMbps <= 0) return fileName;
+        int index = pick(matcher.group(1), matcher.group(3), ladder.indexOf(matcher.group(2)), reportedMbps * 1e6);
+        return index < 0 ? fileName : name(matcher.group(1), index, matcher.group(3));
+    }
+
+    // Keeps adjusting a fan-out viewer for as long as it is tracked
+    public void track(StreamSession session, FanoutSubscriber subscriber, double reportedMbps) {
+        Matcher requested = renditionName.matcher(session.getFileName());
+        Matcher current = renditionName.matcher(session.getRendition());
+        if (!requested.matches() || !current.matches()) return;
+        Viewer viewer = new Viewer(session, subscriber, requested.group(1), requested.group(3),
+            ladder.indexOf(requested.group(2)), ladder.indexOf(current.group(2)));
+        viewer.estimateBps = reportedMbps * 1e6;
+        viewers.put(session.getId(), viewer);
+    }
+
+    public void untrack(String sessionId) {
+        viewers.remove(sessionId);
+    }
+
+    // Bandwidth measured by the client during playback
+    public boolean report(String sessionId, double mbps) {
+        Viewer viewer = viewers.get(sessionId);
+        if (viewer == null) return false;
+        viewer.estimateBps = mbps * 1e6;
+        return true;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(CHECK_INTERVAL_MILLIS);
+                for (Viewer viewer : viewers.values()) {
+                    check(viewer);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Adaptive check failed: ", e);
+            }
+        }
+    }
+
+    private void check(Viewer viewer) {
+        FanoutSubscriber subscriber = viewer.subscriber;
+        FanoutChannel channel = subscriber.getChannel();
+        long now = System.currentTimeMillis();
+        long bytes = subscriber.getBytesSent();
+        long losses = subscriber.getChunksDropped() + subscriber.getKeyframeSkips();
+        double measuredBps = (bytes - viewer.lastBytes) * 8000.0 / Math.max(1, now - viewer.lastCheck);
+        boolean lossy = losses > viewer.lastLosses;
+        viewer.lastBytes = bytes;
+        viewer.lastLosses = losses;
+        viewer.lastCheck = now;
+        if (channel == null || !subscriber.isConnected() || viewer.switching || subscriber.isSwitching()) return;
+
+        // a viewer that falls behind is sending as fast as its link allows
+        boolean congested = lossy || channel.getLag(subscriber) > channel.getCapacity() / 4;
+        if (congested && measuredBps > 0) {
+            viewer.estimateBps = measuredBps;
+        } else if (measuredBps > viewer.estimateBps) {
+            viewer.estimateBps = measuredBps;
+        }
+
+        int target = pick(viewer.base, viewer.container, viewer.ceiling, viewer.estimateBps);
+        if (congested && target >= viewer.current) target = previousAvailable(viewer);
+        if (target < 0 || target == viewer.current) return;
+
+        long held = now - viewer.lastSwitch;
+        if (target < viewer.current && held >= DOWN_HOLD_MILLIS) {
+            switchTo(viewer, target);
+        } else if (target > viewer.current && !congested && held >= UP_HOLD_MILLIS) {
+            switchTo(viewer, nextAvailable(viewer));
+        }
+    }
+
+    private int nextAvailable(Viewer viewer) {
+        for (int i = viewer.current + 1; i <= viewer.ceiling; i++) {
+            if (available.test(name(viewer.base, i, viewer.container))) return i;
+        }
+        return viewer.current;
+    }
+
+    private int previousAvailable(Viewer viewer) {
+        for (int i = viewer.current - 1; i >= 0; i--) {
+            if (available.test(name(viewer.base, i, viewer.container))) return i;
+        }
+        return -1;
+    }
+
+    private void switchTo(Viewer viewer, int index) {
+        if (index == viewer.current) return;
+        String name = name(viewer.base, index, viewer.container);
+        viewer.switching = true;
+        viewer.lastSwitch = System.currentTimeMillis();
+        logger.info("Session {} switching {} -> {} at {} kbps", viewer.session.getId(),
+            ladder.get(viewer.current), ladder.get(index), (long) (viewer.estimateBps / 1000));
+        resolver.apply(name).whenComplete((file, error) -> {
+            try {
+                if (error != null) {
+                    logger.warn("Session {} could not switch to {}: {}", viewer.session.getId(), name, error.getMessage());
+                } else if (viewers.get(viewer.session.getId()) == viewer) {
+                    hub.switchTo(viewer.subscriber, file);
+                    viewer.current = index;
+                    viewer.session.setRendition(name);
+                }
+            } catch (ServerBusyException e) {
+                logger.info("Session {} stays on {}: {}", viewer.session.getId(), ladder.get(viewer.current),
+                    e.getMessage());
+            } catch (IOException e) {
+                logger.warn("Session {} could not switch to {}: ", viewer.session.getId(), name, e);
+            } finally {
+                viewer.lastSwitch = System.currentTimeMillis();
+                viewer.switching = false;
+            }
+        });
+    }
+
+    // Highest available rung at or below ceiling that fits the bandwidth, else the lowest available; -1 if none
+    private int pick(String base, String container, int ceiling, double bandwidthBps) {
+        int best = -1;
+        int lowest = -1;
+        for (int i = 0; i <= ceiling && i < ladder.size(); i++) {
+            String name = name(base, i, container);
+            if (!available.test(name)) continue;
+            if (lowest < 0) lowest = i;
+            if (bitRate(name, i) <= bandwidthBps * HEADROOM) best = i;
+        }
+        return best >= 0 ? best : lowest;
+    }
+
+    private long bitRate(String name, int index) {
+        CatalogEntry entry = catalog.apply(name);
+        if (entry != null && entry.getBitRate() > 0) return entry.getBitRate();
+        return NOMINAL_BITRATES.getOrDefault(ladder.get(index), Long.MAX_VALUE);
+    }
+
+    private String name(String base, int index, String container) {
+        return base + "-" + ladder.get(index) + "." + container;
+    }
+
+    private static class Viewer {
+        final StreamSession session;
+        final FanoutSubscriber subscriber;
+        final String base;
+        final String container;
+        final int ceiling;
+        volatile int current;
+        volatile double estimateBps;
+        volatile boolean switching;
+        volatile long lastSwitch = System.currentTimeMillis();
+        long lastCheck = System.currentTimeMillis();
+        long lastBytes;
+        long lastLosses;
+
+        Viewer(StreamSession session, FanoutSubscriber subscriber, String base, String container, int ceiling,
+               int current) {
+            this.session = session;
+            this.subscriber = subscriber;
+            this.base = base;
+            this.container = container;
+            this.ceiling = ceiling;
+            this.current = current;
+        }
+    }
+}
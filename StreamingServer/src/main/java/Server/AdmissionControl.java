@@ -0,0 +1,147 @@
+package Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decides which ffmpeg processes may start. Live encoders, which a viewer is watching, and background
+// transcodes have separate caps. Background work only starts while the machine has headroom and no
+// viewer is waiting for a live slot, so live playback always wins.
+public class AdmissionControl {
+    private static final Logger logger = LogManager.getLogger(AdmissionControl.class);
+    private static final int RETRY_AFTER_SECONDS = 5;
+    private static final long SAMPLE_MILLIS = 1000;
+
+    private final int maxLive;
+    private final int maxBackground;
+    private final double maxUtilization;
+    private final long liveWaitMillis;
+    private final Semaphore live;
+    private final AtomicInteger liveWaiting = new AtomicInteger();
+    private final AtomicInteger background = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private final int cores = Runtime.getRuntime().availableProcessors();
+
+    private volatile double utilization;
+    private volatile long sampledAt;
+
+    // maxUtilization: share of the machine's CPU (0-1) above which it counts as saturated
+    public AdmissionControl(int maxLive, int maxBackground, double maxUtilization, long liveWaitMillis) {
+        this.maxLive = maxLive;
+        this.maxBackground = maxBackground;
+        this.maxUtilization = maxUtilization;
+        this.liveWaitMillis = liveWaitMillis;
+        this.live = new Semaphore(maxLive, true);
+        logger.info("Admitting {} live encoders and {} background transcodes, saturated above {}% CPU",
+            maxLive, maxBackground, Math.round(maxUtilization * 100));
+    }
+
+    // Waits a little for a live slot. A saturated machine only takes another live encoder while background
+    // transcodes are running, since those give way to it.
+    public void acquireLive() throws ServerBusyException {
+        if (isSaturated() && background.get() == 0) {
+            rejected.incrementAndGet();
+            throw new ServerBusyException(String.format("server CPU at %.0f%%", getUtilization() * 100),
+                RETRY_AFTER_SECONDS * 2);
+        }
+        liveWaiting.incrementAndGet();
+        try {
+            if (!live.tryAcquire(liveWaitMillis, TimeUnit.MILLISECONDS)) {
+                rejected.incrementAndGet();
+                throw new ServerBusyException("all " + maxLive + " live encoders in use", RETRY_AFTER_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServerBusyException("interrupted while waiting for an encoder", RETRY_AFTER_SECONDS);
+        } finally {
+            liveWaiting.decrementAndGet();
+        }
+    }
+
+    // For optional live work such as a rendition switch: never waits
+    public boolean tryAcquireLive() {
+        return !isSaturated() && live.tryAcquire();
+    }
+
+    public void releaseLive() {
+        live.release();
+    }
+
+    // urgent: a viewer is waiting for the output, e.g. a rendition built on request. Those only share
+    // the scheduler's workers; other jobs wait for a background slot and for headroom.
+    public boolean tryAcquireBackground(boolean urgent) {
+        if (urgent) {
+            background.incrementAndGet();
+            return true;
+        }
+        if (liveWaiting.get() > 0) return false;
+        // with nothing else running the queue keeps moving even if something outside the server is busy
+        boolean idle = background.get() == 0 && getLiveEncoders() == 0;
+        if (!idle && isSaturated()) return false;
+        while (true) {
+            int running = background.get();
+            if (running >= maxBackground) return false;
+            if (background.compareAndSet(running, running + 1)) return true;
+        }
+    }
+
+    public void releaseBackground() {
+        background.decrementAndGet();
+    }
+
+    public boolean isSaturated() {
+        return getUtilization() >= maxUtilization;
+    }
+
+    // Whole-machine CPU use from 0 to 1, sampled at most once a second. Falls back to the load average
+    // per core where the JVM does not report CPU load.
+    public double getUtilization() {
+        long now = System.currentTimeMillis();
+        if (now - sampledAt >= SAMPLE_MILLIS) {
+            double cpu = -1;
+            if (os instanceof com.sun.management.OperatingSystemMXBean) {
+                cpu = ((com.sun.management.OperatingSystemMXBean) os).getSystemCpuLoad();
+            }
+            if (cpu < 0) {
+                double load = os.getSystemLoadAverage();
+                cpu = load < 0 ? 0 : Math.min(1.0, load / cores);
+            }
+            utilization = cpu;
+            sampledAt = now;
+        }
+        return utilization;
+    }
+
+    public int getLiveEncoders() {
+        return maxLive - live.availablePermits();
+    }
+
+    public int getMaxLive() {
+        return maxLive;
+    }
+
+    public int getBackgroundTranscodes() {
+        return background.get();
+    }
+
+    public int getMaxBackground() {
+        return maxBackground;
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("live %d/%d, background %d/%d, CPU %.0f%%, rejected %d", getLiveEncoders(), maxLive,
+            background.get(), maxBackground, getUtilization() * 100, rejected.get());
+    }
+}
@@ -0,0 +1,106 @@
+package Server;
+
+import java.io.File;
+
+// Immutable metadata for one file in the video folder
+public class CatalogEntry {
+    private final String name;
+    private final long size;
+    private final long lastModified;
+    private final double durationSeconds;
+    private final long bitRate;
+    private final int width;
+    private final int height;
+    private final String container;
+    private final String videoCodec;
+    private final boolean probed;
+
+    public CatalogEntry(String name, long size, long lastModified, double durationSeconds, long bitRate,
+                        int width, int height, String container, String videoCodec, boolean probed) {
+        this.name = name;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.durationSeconds = durationSeconds;
+        this.bitRate = bitRate;
+        this.width = width;
+        this.height = height;
+        this.container = container;
+        this.videoCodec = videoCodec;
+        this.probed = probed;
+    }
+
+    // Placeholder until ffprobe has run
+    public static CatalogEntry unprobed(File file) {
+        return new CatalogEntry(file.getName(), file.length(), file.lastModified(), 0, 0, 0, 0, "", "", false);
+    }
+
+    // Metadata is still valid if the file has not changed since it was probed
+    public boolean matches(File file) {
+        return size == file.length() && lastModified == file.lastModified();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public double getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public long getBitRate() {
+        return bitRate;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getContainer() {
+        return container;
+    }
+
+    public String getVideoCodec() {
+        return videoCodec;
+    }
+
+    public boolean isProbed() {
+        return probed;
+    }
+
+    // Tab separated line for the on-disk metadata cache
+    public String toLine() {
+        return String.join("\t", name, Long.toString(size), Long.toString(lastModified),
+            Double.toString(durationSeconds), Long.toString(bitRate), Integer.toString(width),
+            Integer.toString(height), container, videoCodec);
+    }
+
+    public static CatalogEntry fromLine(String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length < 9) return null;
+        try {
+            return new CatalogEntry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                Double.parseDouble(fields[3]), Long.parseLong(fields[4]), Integer.parseInt(fields[5]),
+                Integer.parseInt(fields[6]), fields[7], fields[8], true);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%dx%d %s/%s, %.1fs, %d kb/s, %d bytes)", name, width, height, container,
+            videoCodec, durationSeconds, bitRate / 1000, size);
+    }
+}
@@ -0,0 +1,150 @@
+package Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One client control connection; channel I/O only ever happens on its event loop
+public class ControlConnection {
+    private static final Logger logger = LogManager.getLogger(ControlConnection.class);
+
+    private static final int INITIAL_BUFFER_BYTES = 4096;
+    // a client that stops reading responses is dropped rather than buffered forever
+    private static final long MAX_QUEUED_BYTES = 64L << 20;
+
+    private final ControlServer server;
+    private final ControlServer.EventLoop loop;
+    private final SocketChannel channel;
+    private final String remoteAddress;
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+
+    ControlConnection(ControlServer server, ControlServer.EventLoop loop, SocketChannel channel) throws IOException {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    void onReadable() throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            close();
+            return;
+        }
+
+        readBuffer.flip();
+        int needed = 0;
+        while (readBuffer.remaining() >= 4) {
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < 4 || length > ControlServer.MAX_REQUEST_BYTES) {
+                logger.warn("Dropping {}: bad frame length {}", remoteAddress, length);
+                close();
+                return;
+            }
+            if (readBuffer.remaining() < 4 + length) {
+                needed = 4 + length;
+                break;
+            }
+            readBuffer.getInt();
+            int correlationId = readBuffer.getInt();
+            byte[] payload = new byte[length - 4];
+            readBuffer.get(payload);
+            server.dispatch(this, correlationId, payload);
+            if (closed.get()) return;
+        }
+        readBuffer.compact();
+
+        if (needed > readBuffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(needed);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    void onWritable() throws IOException {
+        ByteBuffer head;
+        while ((head = writeQueue.peek()) != null) {
+            queuedBytes.addAndGet(-channel.write(head));
+            if (head.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            writeQueue.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    // Safe from any thread; the bytes are written by the event loop
+    public void send(int correlationId, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(8 + payload.length);
+        frame.putInt(4 + payload.length).putInt(correlationId).put(payload);
+        frame.flip();
+        enqueue(frame);
+    }
+
+    private void enqueue(ByteBuffer frame) {
+        if (closed.get()) return;
+        writeQueue.add(frame);
+        if (queuedBytes.addAndGet(frame.remaining()) > MAX_QUEUED_BYTES) {
+            logger.warn("Dropping {}: {} bytes of responses unread", remoteAddress, queuedBytes.get());
+            close();
+            return;
+        }
+        if (loop.inLoop()) {
+            flush();
+        } else {
+            loop.execute(this::flush);
+        }
+    }
+
+    private void flush() {
+        if (closed.get() || !key.isValid()) return;
+        try {
+            onWritable();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // already gone
+        }
+        writeQueue.clear();
+        server.closed(this);
+    }
+
+    @Override
+    public String toString() {
+        return remoteAddress;
+    }
+}
@@ -0,0 +1,190 @@
+package Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Non-blocking control plane. Every request and response is a frame:
+// int length (of what follows), int correlation id, payload. Payloads use DataOutputStream encoding,
+// starting with the command name, and a connection may have any number of requests in flight.
+public class ControlServer {
+    private static final Logger logger = LogManager.getLogger(ControlServer.class);
+
+    public static final int MAX_REQUEST_BYTES = 1 << 20;
+
+    public interface Handler {
+        // Commands that may block (waiting on ffmpeg, a transcode...) run on a worker thread
+        boolean isBlocking(String command);
+
+        void handle(ControlConnection connection, String command, DataInputStream in, DataOutputStream out)
+            throws Exception;
+
+        void closed(ControlConnection connection);
+    }
+
+    private final int port;
+    private final Handler handler;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final AtomicInteger connections = new AtomicInteger();
+    private int nextLoop;
+
+    public ControlServer(int port, int eventLoops, Handler handler) {
+        this.port = port;
+        this.handler = handler;
+        this.loops = new EventLoop[eventLoops];
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "control-worker-" + workerCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Accepts on the calling thread; the connections themselves live on the event loops
+    public void serve() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread t = new Thread(loops[i], "control-loop-" + (i + 1));
+            t.setDaemon(true);
+            t.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            logger.info("Server listening on port {} with {} event loops", port, loops.length);
+
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                EventLoop loop = loops[nextLoop++ % loops.length];
+                loop.execute(() -> register(loop, channel));
+            }
+        }
+    }
+
+    private void register(EventLoop loop, SocketChannel channel) {
+        try {
+            ControlConnection connection = new ControlConnection(this, loop, channel);
+            connection.setKey(channel.register(loop.selector, SelectionKey.OP_READ, connection));
+            connections.incrementAndGet();
+            logger.debug("New client connected: {}", connection.getRemoteAddress());
+        } catch (IOException e) {
+            logger.warn("Could not register connection: {}", e.getMessage());
+        }
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    // Called on the connection's event loop for each complete request frame
+    void dispatch(ControlConnection connection, int correlationId, byte[] payload) {
+        String command;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        try {
+            command = in.readUTF();
+        } catch (IOException e) {
+            logger.warn("Malformed request from {}", connection.getRemoteAddress());
+            connection.close();
+            return;
+        }
+
+        if (handler.isBlocking(command)) {
+            workers.execute(() -> respond(connection, correlationId, command, in));
+        } else {
+            respond(connection, correlationId, command, in);
+        }
+    }
+
+    private void respond(ControlConnection connection, int correlationId, String command, DataInputStream in) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            handler.handle(connection, command, in, out);
+        } catch (Exception e) {
+            logger.error("Error handling {} from {}: ", command, connection.getRemoteAddress(), e);
+            bytes.reset();
+            try {
+                out.writeUTF("ERROR");
+                out.writeUTF(String.valueOf(e.getMessage()));
+            } catch (IOException ignored) {
+                // cannot happen writing to memory
+            }
+        }
+        connection.send(correlationId, bytes.toByteArray());
+    }
+
+    void closed(ControlConnection connection) {
+        connections.decrementAndGet();
+        handler.closed(connection);
+    }
+
+    // One selector thread serving many connections
+    static class EventLoop implements Runnable {
+        final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile Thread thread;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    logger.error("Selector failed: ", e);
+                    return;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ControlConnection connection = (ControlConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) connection.onReadable();
+                        if (key.isValid() && key.isWritable()) connection.onWritable();
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+            }
+        }
+    }
+}
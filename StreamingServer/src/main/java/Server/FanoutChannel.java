@@ -0,0 +1,264 @@
+package Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// One ffmpeg remuxing a file to MPEG-TS into a ring buffer, read by any number of subscribers.
+// The thread reading ffmpeg's output also delivers to subscribers, so slots are never
+// written while being sent.
+public class FanoutChannel implements Runnable {
+    private static final Logger logger = LogManager.getLogger(FanoutChannel.class);
+
+    public enum SlowConsumerPolicy { DROP_TO_KEYFRAME, DISCONNECT }
+
+    // seven TS packets: the usual UDP payload for MPEG-TS
+    static final int CHUNK_BYTES = 7 * TsPackets.PACKET_SIZE;
+
+    private final String key;
+    private final File source;
+    private final double startSeconds;
+    private final FanoutHub hub;
+    private final SlowConsumerPolicy policy;
+    private final int capacity;
+    private final byte[][] slots;
+    private final ByteBuffer[] slotViews;
+    private final boolean[] keyframes;
+    private final List<FanoutSubscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    // sequence number of the next chunk to be written
+    private volatile long head;
+    private volatile long lastKeyframe = -1;
+    private volatile byte[] patPacket;
+    private volatile byte[] pmtPacket;
+    private final List<Integer> pmtPids = new ArrayList<>();
+    private int videoPid = -1;
+
+    private Process process;
+    private volatile FfmpegProgress progress;
+    private volatile long startedAt;
+    private volatile boolean stopped;
+
+    // startSeconds: where in the file the encoder starts, for viewers switching in from another rendition
+    FanoutChannel(String key, File source, double startSeconds, FanoutHub hub, int capacity,
+                  SlowConsumerPolicy policy) {
+        this.key = key;
+        this.source = source;
+        this.startSeconds = startSeconds;
+        this.hub = hub;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.slots = new byte[capacity][CHUNK_BYTES];
+        this.slotViews = new ByteBuffer[capacity];
+        this.keyframes = new boolean[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slotViews[i] = ByteBuffer.wrap(slots[i]);
+        }
+    }
+
+    void start() throws IOException {
+        // source timestamps are kept so renditions of one file share a timeline
+        List<String> command = new ArrayList<>();
+        command.add(MediaProbe.FFMPEG);
+        command.addAll(FfmpegProgress.STDERR_OPTIONS);
+        command.addAll(Arrays.asList("-re", "-ss", String.format(Locale.ROOT, "%.3f", startSeconds),
+            "-i", source.getAbsolutePath(), "-copyts",
+            "-map", "0:v?", "-map", "0:a?", "-c", "copy", "-f", "mpegts", "pipe:1"));
+        logger.info("Fan-out {} executing: {}", key, String.join(" ", command));
+        process = new ProcessBuilder(command).start();
+        startedAt = System.nanoTime();
+        progress = FfmpegProgress.follow("fanout " + source.getName(), true, process.getErrorStream());
+
+        Thread pump = new Thread(this, "fanout-" + source.getName());
+        pump.setDaemon(true);
+        pump.start();
+    }
+
+    // Late joiners start at the newest keyframe that is still buffered
+    void subscribe(FanoutSubscriber subscriber) {
+        subscriber.nextChannel = null;
+        long newest = head;
+        long keyframe = lastKeyframe;
+        subscriber.cursor = keyframe >= 0 && keyframe > newest - capacity ? keyframe : Math.max(0, newest - capacity);
+        subscriber.needsHeaders = true;
+        subscriber.channel = this;
+        subscribers.add(subscriber);
+    }
+
+    // Returns true when this was the last subscriber
+    boolean unsubscribe(FanoutSubscriber subscriber) {
+        subscribers.remove(subscriber);
+        return subscribers.isEmpty();
+    }
+
+    void stop() {
+        stopped = true;
+        if (process != null) {
+            process.destroy();
+        }
+    }
+
+    @Override
+    public void run() {
+        try (InputStream in = process.getInputStream()) {
+            while (!stopped) {
+                int slot = (int) (head % capacity);
+                int length = readChunk(in, slots[slot]);
+                if (length <= 0) break;
+
+                keyframes[slot] = scan(slots[slot], length);
+                slotViews[slot].clear();
+                slotViews[slot].limit(length);
+                if (keyframes[slot]) lastKeyframe = head;
+                head++;
+
+                for (FanoutSubscriber subscriber : subscribers) {
+                    deliver(subscriber);
+                }
+            }
+        } catch (IOException e) {
+            if (!stopped) logger.error("Fan-out {} failed: ", key, e);
+        }
+
+        logger.info("Fan-out {} ended after {} chunks", key, head);
+        hub.ended(this);
+        for (FanoutSubscriber subscriber : subscribers) {
+            subscriber.ended();
+        }
+    }
+
+    private static int readChunk(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read < 0) break;
+            length += read;
+        }
+        // only whole packets are forwarded
+        return length - length % TsPackets.PACKET_SIZE;
+    }
+
+    // Tracks PAT/PMT for late joiners; true if a video random access point starts in this chunk
+    private boolean scan(byte[] chunk, int length) {
+        boolean keyframe = false;
+        for (int off = 0; off < length; off += TsPackets.PACKET_SIZE) {
+            int pid = TsPackets.pid(chunk, off);
+            if (pid == 0) {
+                List<Integer> pids = TsPackets.pmtPids(chunk, off);
+                if (!pids.isEmpty()) {
+                    pmtPids.clear();
+                    pmtPids.addAll(pids);
+                    patPacket = Arrays.copyOfRange(chunk, off, off + TsPackets.PACKET_SIZE);
+                }
+            } else if (pmtPids.contains(pid)) {
+                int video = TsPackets.videoPid(chunk, off);
+                if (video >= 0) {
+                    videoPid = video;
+                    pmtPacket = Arrays.copyOfRange(chunk, off, off + TsPackets.PACKET_SIZE);
+                }
+            } else if (pid == videoPid && TsPackets.payloadStart(chunk, off) && TsPackets.randomAccess(chunk, off)) {
+                keyframe = true;
+            }
+        }
+        return keyframe;
+    }
+
+    private void deliver(FanoutSubscriber subscriber) {
+        FanoutChannel next = subscriber.nextChannel;
+        if (next != null && next.hasKeyframe()) {
+            // the viewer leaves this rendition between chunks and enters the next one at a keyframe
+            hub.handOff(subscriber, this, next);
+            return;
+        }
+        try {
+            long newest = head;
+            if (newest - subscriber.cursor > capacity * 3L / 4) {
+                if (policy == SlowConsumerPolicy.DISCONNECT || lastKeyframe <= subscriber.cursor) {
+                    logger.warn("Disconnecting slow consumer {} on {}", subscriber.getSessionId(), key);
+                    unsubscribe(subscriber);
+                    subscriber.ended();
+                    return;
+                }
+                subscriber.cursor = lastKeyframe;
+                subscriber.needsHeaders = true;
+                subscriber.skippedToKeyframe();
+            }
+
+            if (subscriber.needsHeaders && patPacket != null && pmtPacket != null) {
+                if (!subscriber.write(ByteBuffer.wrap(patPacket))) return;
+                subscriber.write(ByteBuffer.wrap(pmtPacket));
+                subscriber.needsHeaders = false;
+            }
+
+            while (subscriber.cursor < newest) {
+                ByteBuffer view = slotViews[(int) (subscriber.cursor % capacity)];
+                view.position(0);
+                if (!subscriber.write(view)) return;
+                subscriber.cursor++;
+            }
+        } catch (IOException e) {
+            logger.info("Subscriber {} on {} went away: {}", subscriber.getSessionId(), key, e.getMessage());
+            unsubscribe(subscriber);
+            subscriber.ended();
+        }
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public File getSource() {
+        return source;
+    }
+
+    List<FanoutSubscriber> getSubscribers() {
+        return subscribers;
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    public long getHead() {
+        return head;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    // Encoder counters from ffmpeg's -progress output
+    public FfmpegProgress getProgress() {
+        return progress;
+    }
+
+    // Chunks buffered for the subscriber but not yet sent
+    public long getLag(FanoutSubscriber subscriber) {
+        return head - subscriber.cursor;
+    }
+
+    boolean hasKeyframe() {
+        long keyframe = lastKeyframe;
+        return keyframe >= 0 && keyframe > head - capacity;
+    }
+
+    // Playback position of the live edge in the source file; ffmpeg paces output in real time
+    public double getPosition() {
+        return startedAt == 0 ? startSeconds : startSeconds + (System.nanoTime() - startedAt) / 1e9;
+    }
+
+    @Override
+    public String toString() {
+        return source.getName() + " viewers=" + subscribers.size() + " chunks=" + head
+            + " keyframe=" + lastKeyframe + (progress == null ? "" : " " + progress);
+    }
+}
@@ -0,0 +1,200 @@
+package Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Shares one encoder per (file, container) between every viewer of it.
+// Every channel in the map holds one live slot from admission control until it is removed.
+public class FanoutHub {
+    private static final Logger logger = LogManager.getLogger(FanoutHub.class);
+    private static final String CONTAINER = "mpegts";
+    private static final int TCP_ACCEPT_TIMEOUT_MILLIS = 30000;
+    // a running rendition is reused for a switch if its live edge is this close to the viewer's
+    private static final double SWITCH_TOLERANCE_SECONDS = 2.0;
+
+    private final int capacity;
+    private final FanoutChannel.SlowConsumerPolicy policy;
+    private final AdmissionControl admission;
+    private final Map<String, FanoutChannel> channels = new HashMap<>();
+    private DatagramChannel udp;
+
+    // capacity: chunks of seven TS packets buffered per channel
+    public FanoutHub(int capacity, FanoutChannel.SlowConsumerPolicy policy, AdmissionControl admission) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.admission = admission;
+    }
+
+    // Opens the datagram socket shared by every UDP viewer
+    public void start() throws IOException {
+        udp = DatagramChannel.open();
+        udp.configureBlocking(false);
+        logger.info("Fan-out buffering {} chunks per channel, slow consumers: {}", capacity, policy);
+    }
+
+    public FanoutSubscriber subscribeUdp(String sessionId, File source, InetSocketAddress target, Runnable onEnd)
+        throws IOException {
+        FanoutSubscriber subscriber = FanoutSubscriber.udp(sessionId, udp, target, onEnd);
+        subscribe(subscriber, source);
+        return subscriber;
+    }
+
+    // The client connects to port after the reply; data is buffered in the channel until it does
+    public FanoutSubscriber subscribeTcp(String sessionId, File source, int port, Runnable onEnd) throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+        FanoutSubscriber.Tcp subscriber = FanoutSubscriber.tcp(sessionId, onEnd);
+        subscriber.listening(listener);
+        try {
+            subscribe(subscriber, source);
+        } catch (IOException e) {
+            listener.close();
+            throw e;
+        }
+
+        Thread acceptor = new Thread(() -> {
+            try (ServerSocketChannel server = listener) {
+                server.socket().setSoTimeout(TCP_ACCEPT_TIMEOUT_MILLIS);
+                subscriber.connected(server.socket().accept().getChannel());
+            } catch (SocketTimeoutException e) {
+                logger.warn("Session {} never connected on port {}", sessionId, port);
+                unsubscribe(subscriber);
+                subscriber.ended();
+            } catch (IOException e) {
+                unsubscribe(subscriber);
+                subscriber.ended();
+            }
+        }, "tcp-accept-" + sessionId);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return subscriber;
+    }
+
+    // Joining a running channel is free; starting one waits for a live slot outside the lock,
+    // and hands the slot back if another viewer started the channel meanwhile
+    private void subscribe(FanoutSubscriber subscriber, File source) throws IOException {
+        String key = source.getAbsolutePath() + "|" + CONTAINER;
+        boolean slot = false;
+        try {
+            while (true) {
+                synchronized (this) {
+                    FanoutChannel channel = channels.get(key);
+                    if (channel == null && slot) {
+                        channel = new FanoutChannel(key, source, 0, this, capacity, policy);
+                        channel.start();
+                        channels.put(key, channel);
+                        slot = false;
+                    }
+                    if (channel != null) {
+                        channel.subscribe(subscriber);
+                        logger.info("Session {} joined {} ({} viewers)", subscriber.getSessionId(), key,
+                            channel.getSubscriberCount());
+                        return;
+                    }
+                }
+                admission.acquireLive();
+                slot = true;
+            }
+        } finally {
+            if (slot) admission.releaseLive();
+        }
+    }
+
+    // Moves a viewer to another rendition of what it is watching, at the same point in the file.
+    // The handover happens on the current channel's thread once the target has a keyframe.
+    public synchronized void switchTo(FanoutSubscriber subscriber, File source) throws IOException {
+        FanoutChannel from = subscriber.channel;
+        if (from == null || subscriber.closed) return;
+        double position = from.getPosition();
+        FanoutChannel target = null;
+        for (FanoutChannel channel : channels.values()) {
+            if (channel.getSource().equals(source) && Math.abs(channel.getPosition() - position) <= SWITCH_TOLERANCE_SECONDS) {
+                target = channel;
+                break;
+            }
+        }
+        if (target == null) {
+            if (!admission.tryAcquireLive()) {
+                throw new ServerBusyException("no live encoder free for " + source.getName(), 0);
+            }
+            String key = source.getAbsolutePath() + "|" + CONTAINER + "@" + (long) position;
+            target = new FanoutChannel(key, source, position, this, capacity, policy);
+            try {
+                target.start();
+            } catch (IOException e) {
+                admission.releaseLive();
+                throw e;
+            }
+            channels.put(key, target);
+        }
+        FanoutChannel abandoned = subscriber.nextChannel;
+        subscriber.nextChannel = target;
+        if (abandoned != null && abandoned != target) released(abandoned);
+        logger.info("Session {} moving from {} to {}", subscriber.getSessionId(), from.getKey(), target.getKey());
+    }
+
+    // The encoder stops once nobody is watching
+    public synchronized void unsubscribe(FanoutSubscriber subscriber) {
+        subscriber.closed = true;
+        FanoutChannel channel = subscriber.channel;
+        if (channel == null) return;
+        channel.unsubscribe(subscriber);
+        released(channel);
+        FanoutChannel next = subscriber.nextChannel;
+        if (next != null) released(next);
+    }
+
+    synchronized void handOff(FanoutSubscriber subscriber, FanoutChannel from, FanoutChannel to) {
+        if (subscriber.closed) return;
+        if (channels.get(to.getKey()) != to) {
+            // the target ended before the viewer got there
+            subscriber.nextChannel = null;
+            return;
+        }
+        from.unsubscribe(subscriber);
+        to.subscribe(subscriber);
+        released(from);
+        logger.info("Session {} joined {} ({} viewers)", subscriber.getSessionId(), to.getKey(), to.getSubscriberCount());
+    }
+
+    synchronized void released(FanoutChannel channel) {
+        if (channel.getSubscriberCount() == 0 && !awaited(channel) && channels.get(channel.getKey()) == channel) {
+            channels.remove(channel.getKey());
+            admission.releaseLive();
+            channel.stop();
+            logger.info("Stopped idle fan-out {}", channel.getKey());
+        }
+    }
+
+    // True while a viewer is waiting to switch to the channel
+    private boolean awaited(FanoutChannel channel) {
+        for (FanoutChannel other : channels.values()) {
+            for (FanoutSubscriber subscriber : other.getSubscribers()) {
+                if (subscriber.nextChannel == channel && !subscriber.closed) return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void ended(FanoutChannel channel) {
+        if (channels.get(channel.getKey()) == channel) {
+            channels.remove(channel.getKey());
+            admission.releaseLive();
+        }
+    }
+
+    public synchronized List<FanoutChannel> getChannels() {
+        return new ArrayList<>(channels.values());
+    }
+}
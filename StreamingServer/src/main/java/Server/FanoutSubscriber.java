@@ -0,0 +1,178 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// One viewer reading a FanoutChannel through its own cursor.
+// Only the channel's pump thread calls write(), so no per-subscriber locking is needed.
+public abstract class FanoutSubscriber {
+    private final String sessionId;
+    private final Runnable onEnd;
+
+    volatile FanoutChannel channel;
+    // set when the viewer should move to another rendition at its next keyframe
+    volatile FanoutChannel nextChannel;
+    volatile boolean closed;
+    volatile long cursor;
+    boolean needsHeaders = true;
+
+    private volatile long bytesSent;
+    private volatile long chunksDropped;
+    private volatile long keyframeSkips;
+
+    protected FanoutSubscriber(String sessionId, Runnable onEnd) {
+        this.sessionId = sessionId;
+        this.onEnd = onEnd;
+    }
+
+    // Datagrams of whole TS packets to the client
+    public static FanoutSubscriber udp(String sessionId, DatagramChannel socket, InetSocketAddress target,
+                                       Runnable onEnd) {
+        return new Udp(sessionId, socket, target, onEnd);
+    }
+
+    // Byte stream to a client that connects to the session port
+    public static Tcp tcp(String sessionId, Runnable onEnd) {
+        return new Tcp(sessionId, onEnd);
+    }
+
+    // false when nothing could be accepted now; the same chunk is offered again later
+    abstract boolean write(ByteBuffer chunk) throws IOException;
+
+    abstract void close();
+
+    // True until a requested rendition switch has happened
+    public boolean isSwitching() {
+        return nextChannel != null;
+    }
+
+    // False while a TCP viewer has not connected yet
+    public boolean isConnected() {
+        return true;
+    }
+
+    void ended() {
+        close();
+        onEnd.run();
+    }
+
+    void sent(int bytes) {
+        bytesSent += bytes;
+    }
+
+    void dropped() {
+        chunksDropped++;
+    }
+
+    void skippedToKeyframe() {
+        keyframeSkips++;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public FanoutChannel getChannel() {
+        return channel;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getChunksDropped() {
+        return chunksDropped;
+    }
+
+    public long getKeyframeSkips() {
+        return keyframeSkips;
+    }
+
+    private static class Udp extends FanoutSubscriber {
+        private final DatagramChannel socket;
+        private final InetSocketAddress target;
+
+        Udp(String sessionId, DatagramChannel socket, InetSocketAddress target, Runnable onEnd) {
+            super(sessionId, onEnd);
+            this.socket = socket;
+            this.target = target;
+        }
+
+        @Override
+        boolean write(ByteBuffer chunk) throws IOException {
+            int length = chunk.remaining();
+            // a full send buffer loses the datagram, as the network would
+            if (socket.send(chunk, target) == 0) {
+                dropped();
+            } else {
+                sent(length);
+            }
+            return true;
+        }
+
+        @Override
+        void close() {
+            // the datagram socket is shared
+        }
+    }
+
+    public static class Tcp extends FanoutSubscriber {
+        private final ByteBuffer pending = ByteBuffer.allocate(FanoutChannel.CHUNK_BYTES);
+        private volatile SocketChannel socket;
+        private volatile ServerSocketChannel listener;
+
+        Tcp(String sessionId, Runnable onEnd) {
+            super(sessionId, onEnd);
+            pending.flip();
+        }
+
+        void listening(ServerSocketChannel listener) {
+            this.listener = listener;
+        }
+
+        // Until the client connects, data waits in the ring buffer
+        public void connected(SocketChannel socket) throws IOException {
+            socket.configureBlocking(false);
+            socket.socket().setTcpNoDelay(true);
+            this.socket = socket;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return socket != null;
+        }
+
+        @Override
+        boolean write(ByteBuffer chunk) throws IOException {
+            SocketChannel out = socket;
+            if (out == null) return false;
+            if (pending.hasRemaining()) {
+                sent(out.write(pending));
+                if (pending.hasRemaining()) return false;
+            }
+
+            sent(out.write(chunk));
+            if (chunk.hasRemaining()) {
+                // keep the tail so the byte stream stays packet aligned
+                pending.clear();
+                pending.put(chunk);
+                pending.flip();
+            }
+            return true;
+        }
+
+        @Override
+        void close() {
+            try {
+                if (listener != null) listener.close();
+                if (socket != null) socket.close();
+            } catch (IOException ignored) {
+                // already gone
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+// Live counters of one ffmpeg run, from the key=value blocks it writes with -progress.
+// Every running encoder registers here, so metrics see all of them.
+public class FfmpegProgress {
+    private static final Logger logger = LogManager.getLogger(FfmpegProgress.class);
+    private static final Pattern PROGRESS_LINE = Pattern.compile("[a-z0-9_]+=.*");
+    private static final Set<FfmpegProgress> running = ConcurrentHashMap.newKeySet();
+
+    // options that send progress to stderr and keep ffmpeg's own messages to warnings and errors
+    public static final List<String> STDERR_OPTIONS =
+        Collections.unmodifiableList(Arrays.asList("-nostats", "-loglevel", "warning", "-progress", "pipe:2"));
+
+    private final String name;
+    private final boolean live;
+    private final long startedAt = System.currentTimeMillis();
+    private volatile long frames;
+    private volatile double fps;
+    private volatile double bitrateKbps;
+    private volatile long bytesOut;
+    private volatile long outTimeMicros;
+    private volatile double speed;
+    private volatile long droppedFrames;
+    private volatile long duplicatedFrames;
+    private volatile long updatedAt;
+    private volatile boolean finished;
+
+    // live: paced to real time for a viewer, as opposed to background transcoding.
+    // Call finish() once the process is gone.
+    public FfmpegProgress(String name, boolean live) {
+        this.name = name;
+        this.live = live;
+        running.add(this);
+    }
+
+    // Parses progress from ffmpeg's stderr on its own thread; other lines are ffmpeg's messages and are logged
+    public static FfmpegProgress follow(String name, boolean live, InputStream stderr) {
+        FfmpegProgress progress = new FfmpegProgress(name, live);
+        Thread reader = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(stderr, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!progress.accept(line) && !line.isEmpty()) {
+                        logger.warn("ffmpeg {}: {}", name, line);
+                    }
+                }
+            } catch (IOException e) {
+                logger.debug("ffmpeg {} stderr closed: {}", name, e.getMessage());
+            } finally {
+                progress.finish();
+            }
+        }, "progress-" + name);
+        reader.setDaemon(true);
+        reader.start();
+        return progress;
+    }
+
+    public static List<FfmpegProgress> getRunning() {
+        return new ArrayList<>(running);
+    }
+
+    // True if line was one of the -progress keys
+    public boolean accept(String line) {
+        if (!PROGRESS_LINE.matcher(line).matches()) return false;
+        int eq = line.indexOf('=');
+        String key = line.substring(0, eq);
+        String value = line.substring(eq + 1).trim();
+        try {
+            switch (key) {
+                case "frame":
+                    frames = Long.parseLong(value);
+                    break;
+                case "fps":
+                    fps = Double.parseDouble(value);
+                    break;
+                case "bitrate":
+                    // "1234.5kbits/s", or N/A while nothing has been written
+                    if (value.endsWith("kbits/s")) {
+                        bitrateKbps = Double.parseDouble(value.substring(0, value.length() - 7));
+                    }
+                    break;
+                case "total_size":
+                    bytesOut = Long.parseLong(value);
+                    break;
+                case "out_time_us":
+                // older ffmpeg writes microseconds under this name as well
+                case "out_time_ms":
+                    outTimeMicros = Long.parseLong(value);
+                    break;
+                case "speed":
+                    if (value.endsWith("x")) {
+                        speed = Double.parseDouble(value.substring(0, value.length() - 1));
+                    }
+                    break;
+                case "drop_frames":
+                    droppedFrames = Long.parseLong(value);
+                    break;
+                case "dup_frames":
+                    duplicatedFrames = Long.parseLong(value);
+                    break;
+                case "progress":
+                    // closes a block
+                    updatedAt = System.currentTimeMillis();
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException ignored) {
+            // N/A before the first frame
+        }
+        return true;
+    }
+
+    public void finish() {
+        finished = true;
+        running.remove(this);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isLive() {
+        return live;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public double getFps() {
+        return fps;
+    }
+
+    public double getBitrateKbps() {
+        return bitrateKbps;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    // Position written so far
+    public double getOutTimeSeconds() {
+        return outTimeMicros / 1e6;
+    }
+
+    // 1.0 is real time; live encoders running below it are falling behind
+    public double getSpeed() {
+        return speed;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public long getDuplicatedFrames() {
+        return duplicatedFrames;
+    }
+
+    // Milliseconds since the last progress block; ffmpeg writes one about every 500 ms
+    public long getSilenceMillis() {
+        return System.currentTimeMillis() - (updatedAt == 0 ? startedAt : updatedAt);
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.0ffps %.0fkbps x%.2f drop=%d", fps, bitrateKbps, speed, droppedFrames);
+    }
+}
@@ -0,0 +1,341 @@
+package Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Progressive download of stored files with byte ranges. File bytes go from the page cache
+// to the socket with FileChannel.transferTo, so they never enter the Java heap.
+// HLS/DASH segments under /segments/ are served from an in-memory cache once they are hot.
+public class HttpFileServer implements Runnable {
+    private static final Logger logger = LogManager.getLogger(HttpFileServer.class);
+
+    private static final int MAX_HEADER_BYTES = 8192;
+    // upper bound per transferTo call so one connection cannot monopolise the loop
+    private static final long TRANSFER_CHUNK = 1 << 20;
+    // URL path under which segmenter output is served
+    public static final String SEGMENT_PREFIX = "segments/";
+
+    private final int port;
+    private final Path root;
+    private Path segmentRoot;
+    private SegmentCache segmentCache;
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private Selector selector;
+
+    public HttpFileServer(int port, File root) {
+        this.port = port;
+        this.root = root.toPath().toAbsolutePath().normalize();
+    }
+
+    // Serves segmenter output under /segments/; call before start()
+    public void serveSegments(File segmentRoot, SegmentCache segmentCache) {
+        this.segmentRoot = segmentRoot.toPath().toAbsolutePath().normalize();
+        this.segmentCache = segmentCache;
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        Thread t = new Thread(this, "http-delivery");
+        t.setDaemon(true);
+        t.start();
+        logger.info("HTTP delivery listening on port {}", port);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                logger.error("HTTP selector failed: ", e);
+                return;
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                    } else {
+                        Exchange exchange = (Exchange) key.attachment();
+                        if (key.isReadable()) exchange.onReadable();
+                        if (key.isValid() && key.isWritable()) exchange.onWritable();
+                    }
+                } catch (IOException e) {
+                    if (key.attachment() instanceof Exchange) {
+                        ((Exchange) key.attachment()).close();
+                    }
+                }
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        Exchange exchange = new Exchange(channel);
+        exchange.key = channel.register(selector, SelectionKey.OP_READ, exchange);
+    }
+
+    // Maps a request path inside root, or null if it escapes it
+    private File resolve(String rawPath) {
+        try {
+            String path = URLDecoder.decode(rawPath, "UTF-8");
+            while (path.startsWith("/")) path = path.substring(1);
+            // hidden files such as the catalog cache are not content
+            if (path.startsWith(".") || path.contains("/.")) return null;
+            Path base = root;
+            if (segmentRoot != null && path.startsWith(SEGMENT_PREFIX)) {
+                base = segmentRoot;
+                path = path.substring(SEGMENT_PREFIX.length());
+            }
+            Path resolved = base.resolve(path).normalize();
+            return resolved.startsWith(base) && !resolved.equals(base) ? resolved.toFile() : null;
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String contentType(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        if (lower.endsWith(".mp4")) return "video/mp4";
+        if (lower.endsWith(".mkv")) return "video/x-matroska";
+        if (lower.endsWith(".avi")) return "video/x-msvideo";
+        if (lower.endsWith(".m3u8")) return "application/vnd.apple.mpegurl";
+        if (lower.endsWith(".mpd")) return "application/dash+xml";
+        if (lower.endsWith(".m4s")) return "video/iso.segment";
+        return "application/octet-stream";
+    }
+
+    private static String httpDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
+    // One keep-alive connection: parse a request, stream the response, repeat
+    private class Exchange {
+        private final SocketChannel channel;
+        private final ByteBuffer requestBuffer = ByteBuffer.allocate(MAX_HEADER_BYTES);
+        private SelectionKey key;
+
+        private ByteBuffer header;
+        private ByteBuffer memory;
+        private FileChannel file;
+        private long position;
+        private long remaining;
+        private boolean keepAlive;
+
+        Exchange(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(requestBuffer) < 0) {
+                close();
+                return;
+            }
+            String request = new String(requestBuffer.array(), 0, requestBuffer.position(), StandardCharsets.ISO_8859_1);
+            int end = request.indexOf("\r\n\r\n");
+            if (end < 0) {
+                if (!requestBuffer.hasRemaining()) close();
+                return;
+            }
+            requestBuffer.clear();
+            requests.incrementAndGet();
+            handle(request.substring(0, end));
+        }
+
+        private void handle(String request) throws IOException {
+            String[] lines = request.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            String range = null;
+            keepAlive = requestLine.length > 2 && requestLine[2].equals("HTTP/1.1");
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon < 0) continue;
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equals("range")) range = value;
+                if (name.equals("connection")) keepAlive = !value.equalsIgnoreCase("close");
+            }
+
+            if (requestLine.length < 2 || !(requestLine[0].equals("GET") || requestLine[0].equals("HEAD"))) {
+                respondError(405, "Method Not Allowed");
+                return;
+            }
+            String path = requestLine[1];
+            int query = path.indexOf('?');
+            if (query >= 0) path = path.substring(0, query);
+            File target = resolve(path);
+            if (target == null || !target.isFile()) {
+                respondError(404, "Not Found");
+                return;
+            }
+
+            long length = target.length();
+            long start = 0;
+            long last = length - 1;
+            boolean partial = false;
+            if (range != null && range.startsWith("bytes=") && !range.contains(",")) {
+                String spec = range.substring(6).trim();
+                int dash = spec.indexOf('-');
+                try {
+                    if (dash == 0) {
+                        start = Math.max(0, length - Long.parseLong(spec.substring(1)));
+                    } else {
+                        start = Long.parseLong(spec.substring(0, dash));
+                        if (dash < spec.length() - 1) {
+                            last = Math.min(last, Long.parseLong(spec.substring(dash + 1)));
+                        }
+                    }
+                    partial = true;
+                } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                    partial = false;
+                }
+                if (partial && (start > last || start >= length)) {
+                    keepAlive = false;
+                    respond("416 Range Not Satisfiable", "Content-Range: bytes */" + length + "\r\nContent-Length: 0\r\n",
+                        null, 0, 0);
+                    return;
+                }
+            }
+
+            long count = last - start + 1;
+            StringBuilder headers = new StringBuilder()
+                .append("Content-Type: ").append(contentType(target.getName())).append("\r\n")
+                .append("Content-Length: ").append(count).append("\r\n")
+                .append("Accept-Ranges: bytes\r\n")
+                .append("Last-Modified: ").append(httpDate(target.lastModified())).append("\r\n");
+            if (partial) {
+                headers.append("Content-Range: bytes ").append(start).append('-').append(last)
+                    .append('/').append(length).append("\r\n");
+            }
+            String status = partial ? "206 Partial Content" : "200 OK";
+            if (requestLine[0].equals("HEAD")) {
+                respond(status, headers.toString(), null, 0, 0);
+                return;
+            }
+
+            boolean segment = segmentRoot != null && target.toPath().startsWith(segmentRoot);
+            if (segment) {
+                // packaged output never changes in place
+                headers.append("Cache-Control: public, max-age=86400\r\n");
+                ByteBuffer cached = segmentCache.get(target.toPath());
+                if (cached != null && cached.capacity() == length) {
+                    cached.position((int) start).limit((int) (start + count));
+                    memory = cached;
+                    respond(status, headers.toString(), null, 0, count);
+                    return;
+                }
+            }
+            respond(status, headers.toString(), FileChannel.open(target.toPath(), StandardOpenOption.READ), start, count);
+        }
+
+        private void respondError(int status, String reason) throws IOException {
+            respond(status + " " + reason, "Content-Length: 0\r\n", null, 0, 0);
+        }
+
+        private void respond(String status, String headers, FileChannel body, long start, long count) throws IOException {
+            String head = "HTTP/1.1 " + status + "\r\n" + headers
+                + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+            header = ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1));
+            file = body;
+            position = start;
+            remaining = count;
+            key.interestOps(SelectionKey.OP_WRITE);
+            onWritable();
+        }
+
+        void onWritable() throws IOException {
+            if (header.hasRemaining()) {
+                channel.write(header);
+                if (header.hasRemaining()) return;
+            }
+            if (memory != null) {
+                int sent = channel.write(memory);
+                remaining -= sent;
+                bytesSent.addAndGet(sent);
+                if (memory.hasRemaining()) return;
+                memory = null;
+            }
+            for (int chunk = 0; chunk < 4 && remaining > 0; chunk++) {
+                long sent = file.transferTo(position, Math.min(remaining, TRANSFER_CHUNK), channel);
+                if (sent <= 0) return;
+                position += sent;
+                remaining -= sent;
+                bytesSent.addAndGet(sent);
+            }
+            if (remaining > 0) return;
+
+            closeFile();
+            if (keepAlive) {
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                close();
+            }
+        }
+
+        private void closeFile() {
+            memory = null;
+            if (file == null) return;
+            try {
+                file.close();
+            } catch (IOException ignored) {
+                // read-only
+            }
+            file = null;
+        }
+
+        void close() {
+            closeFile();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // already gone
+            }
+        }
+    }
+}
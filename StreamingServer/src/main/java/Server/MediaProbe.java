@@ -0,0 +1,79 @@
+package Server;
+
+import net.bramp.ffmpeg.FFprobe;
+import net.bramp.ffmpeg.probe.FFmpegFormat;
+import net.bramp.ffmpeg.probe.FFmpegProbeResult;
+import net.bramp.ffmpeg.probe.FFmpegStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Thin wrapper around ffprobe
+public class MediaProbe {
+    private static final Logger logger = LogManager.getLogger(MediaProbe.class);
+
+    // binaries can be swapped, e.g. for a stub encoder in benchmarks
+    public static final String FFMPEG = System.getProperty("streaming.ffmpeg", "ffmpeg");
+    public static final String FFPROBE = System.getProperty("streaming.ffprobe", "ffprobe");
+
+    private static FFprobe ffprobe;
+
+    private MediaProbe() {
+    }
+
+    public static synchronized FFprobe ffprobe() throws IOException {
+        if (ffprobe == null) {
+            ffprobe = new FFprobe(FFPROBE);
+        }
+        return ffprobe;
+    }
+
+    // Duration in seconds, or 0 when it cannot be probed
+    public static double durationSeconds(File file) {
+        try {
+            FFmpegProbeResult result = ffprobe().probe(file.getAbsolutePath());
+            if (result.getFormat() != null) {
+                return result.getFormat().duration;
+            }
+        } catch (Exception e) {
+            logger.warn("Could not probe duration of {}: {}", file.getName(), e.getMessage());
+        }
+        return 0;
+    }
+
+    // Full metadata for the catalog
+    public static CatalogEntry probe(File file) throws IOException {
+        FFmpegProbeResult result = ffprobe().probe(file.getAbsolutePath());
+        FFmpegFormat format = result.getFormat();
+        FFmpegStream video = null;
+        if (result.getStreams() != null) {
+            for (FFmpegStream stream : result.getStreams()) {
+                if (stream.codec_type == FFmpegStream.CodecType.VIDEO) {
+                    video = stream;
+                    break;
+                }
+            }
+        }
+
+        return new CatalogEntry(file.getName(), file.length(), file.lastModified(),
+            format != null ? format.duration : 0,
+            format != null ? format.bit_rate : 0,
+            video != null ? video.width : 0,
+            video != null ? video.height : 0,
+            containerName(file, format),
+            video != null && video.codec_name != null ? video.codec_name : "",
+            true);
+    }
+
+    // ffprobe reports demuxer families like "mov,mp4,m4a,3gp,3g2,mj2"; prefer the member matching the file
+    private static String containerName(File file, FFmpegFormat format) {
+        String name = file.getName();
+        String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+        if (format == null || format.format_name == null) return extension;
+        String[] names = format.format_name.split(",");
+        return Arrays.asList(names).contains(extension) ? extension : names[0];
+    }
+}
@@ -0,0 +1,44 @@
+package Server;
+
+import java.util.BitSet;
+
+// Hands out blocks of consecutive ports so concurrent sessions never share one
+public class PortAllocator {
+    private final int basePort;
+    private final int blockSize;
+    private final int blocks;
+    private final BitSet used;
+    private int next;
+
+    // blockSize 2 keeps the first port even, as RTP expects, with RTCP on the odd port after it
+    public PortAllocator(int basePort, int portCount, int blockSize) {
+        this.basePort = basePort;
+        this.blockSize = blockSize;
+        this.blocks = portCount / blockSize;
+        this.used = new BitSet(blocks);
+    }
+
+    // First port of a free block, or -1 when the pool is exhausted
+    public synchronized int allocate() {
+        int block = used.nextClearBit(next);
+        if (block >= blocks) {
+            block = used.nextClearBit(0);
+            if (block >= blocks) return -1;
+        }
+        used.set(block);
+        // round robin so a just-released port is not reused while packets may still arrive on it
+        next = (block + 1) % blocks;
+        return basePort + block * blockSize;
+    }
+
+    public synchronized void release(int port) {
+        int block = (port - basePort) / blockSize;
+        if (block >= 0 && block < blocks) {
+            used.clear(block);
+        }
+    }
+
+    public synchronized int getFreeBlocks() {
+        return blocks - used.cardinality();
+    }
+}
@@ -0,0 +1,187 @@
+package Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Throughput half of the PROBE command. A client redeems a token handed out over the control
+// connection and is sent filler for a bounded time from one preallocated direct buffer.
+// Probes are short so they can be repeated during playback.
+public class ProbeServer implements Runnable {
+    private static final Logger logger = LogManager.getLogger(ProbeServer.class);
+
+    public static final int MAX_DURATION_MILLIS = 1000;
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final long TOKEN_TTL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    // token (long) and requested duration (int)
+    private static final int REQUEST_BYTES = 12;
+    private static final int MAX_CONCURRENT = 8;
+
+    private final int port;
+    private final ByteBuffer filler = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private final SecureRandom random = new SecureRandom();
+    private final Map<Long, Long> tokens = new ConcurrentHashMap<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private Selector selector;
+
+    public ProbeServer(int port) {
+        this.port = port;
+        byte[] noise = new byte[BUFFER_BYTES];
+        // incompressible, so links that compress do not inflate the result
+        random.nextBytes(noise);
+        filler.put(noise).flip();
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        Thread t = new Thread(this, "bandwidth-probe");
+        t.setDaemon(true);
+        t.start();
+        logger.info("Bandwidth probe listening on port {}", port);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    // One-time token for a throughput run, or 0 when too many probes are running
+    public long issueToken() {
+        if (active.get() >= MAX_CONCURRENT) return 0;
+        long now = System.nanoTime();
+        tokens.values().removeIf(expiry -> expiry - now < 0);
+        long token;
+        do {
+            token = random.nextLong();
+        } while (token == 0);
+        tokens.put(token, now + TOKEN_TTL_NANOS);
+        return token;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                // wakes regularly to end probes whose time is up even if their socket stalls
+                selector.select(50);
+            } catch (IOException e) {
+                logger.error("Probe selector failed: ", e);
+                return;
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                    } else {
+                        Probe probe = (Probe) key.attachment();
+                        if (key.isReadable()) probe.onReadable();
+                        if (key.isValid() && key.isWritable()) probe.onWritable();
+                    }
+                } catch (IOException e) {
+                    if (key.attachment() instanceof Probe) {
+                        ((Probe) key.attachment()).close();
+                    }
+                }
+            }
+            long now = System.nanoTime();
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Probe) {
+                    ((Probe) key.attachment()).expireIfDue(now);
+                }
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        Probe probe = new Probe(channel);
+        probe.key = channel.register(selector, SelectionKey.OP_READ, probe);
+    }
+
+    private class Probe {
+        private final SocketChannel channel;
+        private final ByteBuffer request = ByteBuffer.allocate(REQUEST_BYTES);
+        private final ByteBuffer data = filler.duplicate();
+        // a client that never sends its request is dropped as well
+        private long deadline = System.nanoTime() + TOKEN_TTL_NANOS;
+        private boolean sending;
+        private long sent;
+        private SelectionKey key;
+
+        Probe(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(request) < 0) {
+                close();
+                return;
+            }
+            if (request.hasRemaining()) return;
+            request.flip();
+            Long expiry = tokens.remove(request.getLong());
+            int duration = Math.max(1, Math.min(MAX_DURATION_MILLIS, request.getInt()));
+            if (expiry == null || expiry - System.nanoTime() < 0) {
+                close();
+                return;
+            }
+            sending = true;
+            if (active.incrementAndGet() > MAX_CONCURRENT) {
+                close();
+                return;
+            }
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(duration);
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        void onWritable() throws IOException {
+            // a few buffers per wakeup keeps concurrent probes fair
+            for (int i = 0; i < 4; i++) {
+                if (!data.hasRemaining()) data.rewind();
+                int written = channel.write(data);
+                sent += written;
+                if (written == 0) return;
+            }
+        }
+
+        void expireIfDue(long now) {
+            if (now - deadline >= 0) close();
+        }
+
+        void close() {
+            if (sending) {
+                sending = false;
+                active.decrementAndGet();
+                logger.debug("Probe to {} sent {} bytes", channel.socket().getRemoteSocketAddress(), sent);
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // already gone
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Disk-budgeted cache of generated renditions; concurrent misses share one transcode
+public class RenditionCache {
+    private static final Logger logger = LogManager.getLogger(RenditionCache.class);
+
+    public enum Policy { LRU, LFU }
+
+    // Builds a missing rendition; the future completes once the file is on disk
+    public interface Producer {
+        CompletableFuture<File> produce(String name);
+    }
+
+    private static class Entry {
+        final File file;
+        final long size;
+        long lastAccess;
+        long uses;
+
+        Entry(File file) {
+            this.file = file;
+            this.size = file.length();
+            this.lastAccess = file.lastModified();
+        }
+    }
+
+    private final File folder;
+    private final long budgetBytes;
+    private final Policy policy;
+    private final Producer producer;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, CompletableFuture<File>> inFlight = new ConcurrentHashMap<>();
+    private long usedBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public RenditionCache(File folder, long budgetBytes, Policy policy, Producer producer) {
+        this.folder = folder;
+        this.budgetBytes = budgetBytes;
+        this.policy = policy;
+        this.producer = producer;
+    }
+
+    // Adopt renditions already on disk, e.g. from a previous run
+    public synchronized void register(File file) {
+        Entry previous = entries.put(file.getName(), new Entry(file));
+        if (previous != null) usedBytes -= previous.size;
+        usedBytes += file.length();
+        evictToBudget(file.getName());
+    }
+
+    public CompletableFuture<File> get(String name) {
+        synchronized (this) {
+            Entry entry = entries.get(name);
+            if (entry != null && entry.file.exists()) {
+                entry.lastAccess = System.currentTimeMillis();
+                entry.uses++;
+                hits.incrementAndGet();
+                return CompletableFuture.completedFuture(entry.file);
+            }
+            if (entry != null) {
+                // deleted behind our back
+                entries.remove(name);
+                usedBytes -= entry.size;
+            }
+        }
+
+        CompletableFuture<File> created = new CompletableFuture<>();
+        CompletableFuture<File> pending = inFlight.putIfAbsent(name, created);
+        if (pending != null) {
+            coalesced.incrementAndGet();
+            return pending;
+        }
+
+        misses.incrementAndGet();
+        logger.info("Rendition cache miss: {}", name);
+        producer.produce(name).whenComplete((file, error) -> {
+            if (error == null) {
+                synchronized (this) {
+                    register(file);
+                    Entry entry = entries.get(name);
+                    if (entry != null) {
+                        entry.lastAccess = System.currentTimeMillis();
+                        entry.uses++;
+                    }
+                }
+                created.complete(file);
+            } else {
+                created.completeExceptionally(error);
+            }
+            inFlight.remove(name);
+        });
+        return created;
+    }
+
+    // keep is never evicted, it is the entry that was just added
+    private void evictToBudget(String keep) {
+        while (usedBytes > budgetBytes) {
+            Entry victim = null;
+            String victimName = null;
+            for (Map.Entry<String, Entry> candidate : entries.entrySet()) {
+                if (candidate.getKey().equals(keep)) continue;
+                if (victim == null || isColder(candidate.getValue(), victim)) {
+                    victim = candidate.getValue();
+                    victimName = candidate.getKey();
+                }
+            }
+            if (victim == null) return;
+
+            // a rendition still open for streaming may refuse deletion on some platforms
+            if (!victim.file.delete() && victim.file.exists()) {
+                logger.warn("Could not evict {}, still in use", victimName);
+                return;
+            }
+            entries.remove(victimName);
+            usedBytes -= victim.size;
+            evictions.incrementAndGet();
+            logger.info("Evicted rendition {} ({} bytes)", victimName, victim.size);
+        }
+    }
+
+    private boolean isColder(Entry a, Entry b) {
+        if (policy == Policy.LFU && a.uses != b.uses) {
+            return a.uses < b.uses;
+        }
+        return a.lastAccess < b.lastAccess;
+    }
+
+    public synchronized List<String> getCachedNames() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s cache: %d renditions, %d/%d MB, hits=%d misses=%d shared=%d evictions=%d in-flight=%d",
+            policy, entries.size(), usedBytes >> 20, budgetBytes >> 20,
+            hits.get(), misses.get(), coalesced.get(), evictions.get(), inFlight.size());
+    }
+}
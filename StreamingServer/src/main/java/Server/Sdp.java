@@ -0,0 +1,75 @@
+package Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+// Session descriptions for RTP sessions, kept in memory: either the one ffmpeg prints once its
+// RTP muxer is set up, or one built from the probed codec when ffmpeg has not printed any.
+final class Sdp {
+    private static final Logger logger = LogManager.getLogger(Sdp.class);
+    private static final int PAYLOAD_TYPE = 96;
+
+    private Sdp() {
+    }
+
+    // Completes with the SDP ffmpeg writes to stdout (without -sdp_file), or null if it exits first.
+    // The reader keeps draining stdout afterwards so ffmpeg never blocks on the pipe.
+    static CompletableFuture<String> fromProcess(Process process, String sessionId) {
+        CompletableFuture<String> sdp = new CompletableFuture<>();
+        Thread reader = new Thread(() -> {
+            StringBuilder lines = new StringBuilder();
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (sdp.isDone()) continue;
+                    if (line.startsWith("SDP:")) continue;
+                    if (line.isEmpty()) {
+                        if (lines.length() > 0) sdp.complete(lines.toString());
+                        continue;
+                    }
+                    lines.append(line).append('\n');
+                }
+            } catch (IOException e) {
+                logger.debug("Session {} stdout closed: {}", sessionId, e.getMessage());
+            }
+            sdp.complete(lines.length() > 0 ? lines.toString() : null);
+        }, "sdp-" + sessionId);
+        reader.setDaemon(true);
+        reader.start();
+        return sdp;
+    }
+
+    // Built from the probed stream, for when ffmpeg's own SDP is not available in time
+    static String fromProbe(CatalogEntry entry, String clientIP, int port) {
+        StringBuilder sdp = new StringBuilder()
+            .append("v=0\n")
+            .append("o=- 0 0 IN IP4 ").append(clientIP).append('\n')
+            .append("s=").append(entry.getName()).append('\n')
+            .append("c=IN IP4 ").append(clientIP).append('\n')
+            .append("t=0 0\n")
+            .append("m=video ").append(port).append(" RTP/AVP ").append(PAYLOAD_TYPE).append('\n');
+        if (entry.getBitRate() > 0) {
+            sdp.append("b=AS:").append(entry.getBitRate() / 1000).append('\n');
+        }
+        switch (entry.getVideoCodec()) {
+            case "h264":
+                sdp.append("a=rtpmap:96 H264/90000\n").append("a=fmtp:96 packetization-mode=1\n");
+                break;
+            case "hevc":
+                sdp.append("a=rtpmap:96 H265/90000\n");
+                break;
+            default:
+                sdp.append("a=rtpmap:96 MP4V-ES/90000\n").append("a=fmtp:96 profile-level-id=1\n");
+                break;
+        }
+        return sdp.toString();
+    }
+}
@@ -0,0 +1,104 @@
+package Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Segments and manifests held in memory once requested, up to a byte budget, least recently used out first.
+// A miss is served from disk while a loader thread reads the file in, so the HTTP loop never waits on it.
+public class SegmentCache {
+    private static final Logger logger = LogManager.getLogger(SegmentCache.class);
+
+    private final long budgetBytes;
+    private final LinkedHashMap<Path, ByteBuffer> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final Set<Path> loading = ConcurrentHashMap.newKeySet();
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "segment-loader");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long usedBytes;
+
+    public SegmentCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    // A private view of the cached bytes, or null after scheduling a load
+    public ByteBuffer get(Path file) {
+        synchronized (this) {
+            ByteBuffer cached = entries.get(file);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached.duplicate();
+            }
+        }
+        misses.incrementAndGet();
+        if (loading.add(file)) {
+            loader.execute(() -> load(file));
+        }
+        return null;
+    }
+
+    private void load(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            // one oversized file must not flush everything else
+            if (size > budgetBytes / 8) return;
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // fill
+            }
+            buffer.flip();
+            put(file, buffer);
+        } catch (IOException e) {
+            logger.debug("Could not cache {}: {}", file, e.getMessage());
+        } finally {
+            loading.remove(file);
+        }
+    }
+
+    private synchronized void put(Path file, ByteBuffer buffer) {
+        ByteBuffer previous = entries.put(file, buffer);
+        if (previous != null) usedBytes -= previous.capacity();
+        usedBytes += buffer.capacity();
+        Iterator<Map.Entry<Path, ByteBuffer>> eldest = entries.entrySet().iterator();
+        while (usedBytes > budgetBytes && eldest.hasNext()) {
+            Map.Entry<Path, ByteBuffer> entry = eldest.next();
+            usedBytes -= entry.getValue().capacity();
+            eldest.remove();
+        }
+    }
+
+    // Drops everything under dir, e.g. after a video has been packaged again
+    public synchronized void invalidate(Path dir) {
+        Iterator<Map.Entry<Path, ByteBuffer>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, ByteBuffer> entry = it.next();
+            if (entry.getKey().startsWith(dir)) {
+                usedBytes -= entry.getValue().capacity();
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("segment cache: %d files, %d/%d MB, hits=%d misses=%d",
+            entries.size(), usedBytes >> 20, budgetBytes >> 20, hits.get(), misses.get());
+    }
+}
@@ -0,0 +1,120 @@
+package Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+// Packages the mp4 renditions of a video into fMP4 segments under segments/<name>/, with one
+// DASH manifest and HLS playlists that share the same segment files.
+// Renditions are encoded with keyframes on every segment boundary, so segments line up across the ladder.
+public class Segmenter {
+    private static final Logger logger = LogManager.getLogger(Segmenter.class);
+
+    public static final int SEGMENT_SECONDS = 4;
+    public static final String DASH_MANIFEST = "manifest.mpd";
+    public static final String HLS_MASTER = "master.m3u8";
+
+    private final File root;
+    private final SegmentCache cache;
+    private final Map<String, TranscodeJob> pending = new ConcurrentHashMap<>();
+
+    public Segmenter(File root, SegmentCache cache) {
+        this.root = root;
+        this.cache = cache;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public File directory(String name) {
+        return new File(root, name);
+    }
+
+    // Packaged output only appears once complete
+    public boolean isPackaged(String name) {
+        return new File(directory(name), DASH_MANIFEST).isFile();
+    }
+
+    // Packaging job created but not finished yet, or null
+    public TranscodeJob pending(String name) {
+        return pending.get(name);
+    }
+
+    // HLS media playlist of one rendition; index is its position in the renditions passed to packageJob
+    public static String hlsPlaylist(int index) {
+        return "media_" + index + ".m3u8";
+    }
+
+    // renditions: lowest to highest; the caller makes sure no other job for name is pending.
+    // Output goes to a hidden directory that replaces the old one when done.
+    public TranscodeJob packageJob(String name, List<File> renditions, int priority) {
+        File staging = new File(root, "." + name + ".tmp");
+        File manifest = new File(staging, DASH_MANIFEST);
+
+        List<String> args = new ArrayList<>();
+        for (File rendition : renditions.subList(1, renditions.size())) {
+            args.addAll(Arrays.asList("-i", rendition.getAbsolutePath()));
+        }
+        for (int i = 0; i < renditions.size(); i++) {
+            args.addAll(Arrays.asList("-map", i + ":v"));
+        }
+        args.addAll(Arrays.asList("-map", "0:a?", "-c", "copy",
+            "-f", "dash", "-seg_duration", String.valueOf(SEGMENT_SECONDS),
+            "-use_template", "1", "-use_timeline", "1", "-hls_playlist", "1",
+            "-adaptation_sets", "id=0,streams=v id=1,streams=a",
+            "-init_seg_name", "init-$RepresentationID$.m4s",
+            "-media_seg_name", "chunk-$RepresentationID$-$Number%05d$.m4s",
+            manifest.getAbsolutePath()));
+
+        try {
+            deleteTree(staging.toPath());
+            Files.createDirectories(staging.toPath());
+        } catch (IOException e) {
+            logger.error("Cannot prepare {}: ", staging, e);
+        }
+        TranscodeJob job = new TranscodeJob(priority, renditions.get(0), Collections.singletonList(manifest), args);
+        pending.put(name, job);
+        job.completion().thenAccept(done -> {
+            if (done.getState() == TranscodeJob.State.DONE) {
+                publish(name, staging);
+            }
+            pending.remove(name, done);
+        });
+        return job;
+    }
+
+    private void publish(String name, File staging) {
+        Path target = directory(name).toPath();
+        try {
+            deleteTree(target);
+            Files.move(staging.toPath(), target, StandardCopyOption.ATOMIC_MOVE);
+            cache.invalidate(target);
+            logger.info("Packaged {} for HLS/DASH", name);
+        } catch (IOException e) {
+            logger.error("Could not publish segments for {}: ", name, e);
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
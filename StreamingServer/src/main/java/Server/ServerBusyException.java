@@ -0,0 +1,17 @@
+package Server;
+
+import java.io.IOException;
+
+// An encoder could not be admitted; the client is told when to try again
+public class ServerBusyException extends IOException {
+    private final int retryAfterSeconds;
+
+    public ServerBusyException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -4,113 +4,576 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class ServerMain {
     // Logger for server 
     private static final Logger logger = LogManager.getLogger(ServerMain.class);
     
 
-    private static final int PORT = 9000;
-    private static final String VIDEO_FOLDER = "videos";
+    private static final int PORT = Integer.getInteger("streaming.controlPort", 9000);
+    private static final int HTTP_PORT = Integer.getInteger("streaming.httpPort", 8080);
+    private static final int PROBE_PORT = Integer.getInteger("streaming.probePort", 9001);
+    // loopback only; 0 leaves metrics on JMX alone
+    private static final int METRICS_PORT = Integer.getInteger("streaming.metricsPort", 9100);
+    private static final int CONTROL_THREADS = Integer.getInteger("streaming.controlThreads",
+        Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final String VIDEO_FOLDER = System.getProperty("streaming.videoFolder", "videos");
+    // HLS/DASH packaging of the mp4 ladder, one directory per video
+    private static final String SEGMENT_FOLDER = System.getProperty("streaming.segmentFolder", "segments");
     private static final String[] FORMATS = {"mp4", "mkv", "avi"};
     private static final String[] RESOLUTIONS = {"240p", "360p", "480p", "720p", "1080p"};
+    // encoded once per resolution; the other formats are stream-copied from it
+    private static final String BASE_FORMAT = "mp4";
+    private static final int ON_DEMAND_PRIORITY = -2;
+    private static final int REMUX_PRIORITY = 0;
+    private static final int ENCODE_PRIORITY = 1;
+    private static final Pattern RENDITION_NAME = Pattern.compile("(.*)-(240p|360p|480p|720p|1080p)\\.(mp4|mkv|avi)");
+    private static final Pattern RENDITION_FILE = Pattern.compile(".*[-_](240p|360p|480p|720p|1080p)\\.(mp4|mkv|avi)");
+
+    // Lazy mode keeps only originals and builds renditions on first STREAM
+    private static final boolean LAZY_RENDITIONS = Boolean.getBoolean("streaming.lazyRenditions");
+    private static final long CACHE_BUDGET_MB = Long.getLong("streaming.cacheBudgetMb", 10240);
+    private static final RenditionCache.Policy CACHE_POLICY =
+        RenditionCache.Policy.valueOf(System.getProperty("streaming.cachePolicy", "LRU").toUpperCase());
+    private static final long ON_DEMAND_TIMEOUT_MINUTES = 30;
+    // how long an RTP session waits for ffmpeg's SDP before describing the stream itself
+    private static final long SDP_TIMEOUT_MILLIS = 3000;
+
+    // Separate caps for encoders viewers are watching and for background transcodes
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    private static final AdmissionControl admission = new AdmissionControl(
+        Integer.getInteger("streaming.maxLiveEncoders", 4 * CORES),
+        Integer.getInteger("streaming.maxTranscodes", Math.max(1, CORES / 2)),
+        Integer.getInteger("streaming.maxCpuPercent", 85) / 100.0,
+        Long.getLong("streaming.admissionWaitMs", 2000));
+    private static final TranscodeScheduler transcodeScheduler = new TranscodeScheduler(admission);
+    private static final RenditionCache renditionCache = new RenditionCache(
+        new File(VIDEO_FOLDER), CACHE_BUDGET_MB << 20, CACHE_POLICY, ServerMain::produceRendition);
+    // Per-session port blocks: media port plus RTCP
+    private static final int STREAM_PORT_BASE = Integer.getInteger("streaming.portBase", 20000);
+    private static final int STREAM_PORT_COUNT = Integer.getInteger("streaming.portCount", 2000);
+    private static final SessionManager sessionManager =
+        new SessionManager(new PortAllocator(STREAM_PORT_BASE, STREAM_PORT_COUNT, 2));
+    private static final HttpFileServer httpServer = new HttpFileServer(HTTP_PORT, new File(VIDEO_FOLDER));
+    private static final ProbeServer probeServer = new ProbeServer(PROBE_PORT);
+    private static final SegmentCache segmentCache =
+        new SegmentCache((long) Integer.getInteger("streaming.segmentCacheMb", 256) << 20);
+    private static final Segmenter segmenter = new Segmenter(new File(SEGMENT_FOLDER), segmentCache);
+    // packaging requested by viewers, by video name
+    private static final Map<String, CompletableFuture<File>> packaging = new ConcurrentHashMap<>();
+    // Live viewers of the same file share one encoder through a ring buffer
+    private static final FanoutHub fanoutHub = new FanoutHub(
+        Integer.getInteger("streaming.fanoutBufferChunks", 4096),
+        System.getProperty("streaming.slowConsumer", "drop").equalsIgnoreCase("disconnect")
+            ? FanoutChannel.SlowConsumerPolicy.DISCONNECT : FanoutChannel.SlowConsumerPolicy.DROP_TO_KEYFRAME,
+        admission);
+    private static final VideoCatalog catalog = new VideoCatalog(new File(VIDEO_FOLDER), ServerMain::listedNames);
+    // Rendition chosen from the client's bandwidth; fan-out viewers keep adapting while they watch
+    private static final boolean ADAPTIVE = Boolean.parseBoolean(System.getProperty("streaming.adaptive", "true"));
+    private static final ServerMetrics metrics = new ServerMetrics(sessionManager, transcodeScheduler, admission);
+    private static final AdaptiveBitrate adaptive = new AdaptiveBitrate(Arrays.asList(RESOLUTIONS), RENDITION_NAME,
+        catalog::get, name -> LAZY_RENDITIONS || catalog.get(name) != null, ServerMain::renditionFile, fanoutHub);
 
     public static void main(String[] args) {
-        logger.info("Starting server and checking for missing video formats...");
-        convertVideosIfMissing();  
+        catalog.start();
+        if (LAZY_RENDITIONS) {
+            logger.info("Starting server with on-demand renditions ({})", renditionCache);
+            registerCachedRenditions();
+        } else {
+            logger.info("Starting server and queueing missing video formats...");
+            // conversions drain in the background while clients are served
+            convertVideosIfMissing();  
+        }
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            logger.info("Server listening on port {}", PORT);
+        try {
+            httpServer.serveSegments(segmenter.getRoot(), segmentCache);
+            httpServer.start();
+        } catch (IOException e) {
+            logger.error("HTTP delivery unavailable: ", e);
+        }
+        try {
+            probeServer.start();
+        } catch (IOException e) {
+            logger.error("Bandwidth probe unavailable: ", e);
+        }
+        try {
+            fanoutHub.start();
+        } catch (IOException e) {
+            logger.error("Fan-out delivery unavailable: ", e);
+        }
+        if (ADAPTIVE) {
+            adaptive.start();
+        }
+        try {
+            metrics.start(METRICS_PORT);
+        } catch (Exception e) {
+            logger.error("Metrics endpoint unavailable: ", e);
+        }
 
-            // client connection
-            while (true) {
-                Socket client = serverSocket.accept();
-                logger.info("New client connected: {}", client.getInetAddress());
-                new Thread(() -> handleClient(client)).start(); 
+        // client connections, served by a few selector threads
+        ControlServer controlServer = new ControlServer(PORT, CONTROL_THREADS, new ControlServer.Handler() {
+            @Override
+            public boolean isBlocking(String command) {
+                return command.equals("STREAM");
             }
+
+            @Override
+            public void handle(ControlConnection connection, String command, DataInputStream in, DataOutputStream out)
+                throws Exception {
+                long started = System.nanoTime();
+                try {
+                    handleCommand(command, connection, in, out);
+                } finally {
+                    metrics.commandHandled(command, System.nanoTime() - started);
+                }
+            }
+
+            @Override
+            public void closed(ControlConnection connection) {
+                // sessions live as long as the connection that opened them
+                sessionManager.stopOwnedBy(connection);
+            }
+        });
+        metrics.watch(controlServer);
+
+        try {
+            controlServer.serve();
         } catch (IOException e) {
             logger.error("Server encountered an error: ", e);
         }
     }
 
-   
-    private static void handleClient(Socket socket) {
-        try (DataInputStream dis = new DataInputStream(socket.getInputStream());
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
+    // One framed request; the response payload goes to dos
+    private static void handleCommand(String command, ControlConnection connection, DataInputStream dis,
+                                      DataOutputStream dos) throws Exception {
+        logger.debug("Received command {} from {}", command, connection);
+        if (command.equals("LIST")) {
+            // Send  video list, straight from the in-memory catalog
+            catalog.writeNames(dos);
 
-            String command = dis.readUTF();
-            logger.info("Received command: {}", command);
+        } else if (command.equals("CATALOG")) {
+            // Stored files with probed metadata
+            List<CatalogEntry> entries = new ArrayList<>(catalog.getEntries());
+            dos.writeInt(entries.size());
+            for (CatalogEntry entry : entries) {
+                dos.writeUTF(entry.getName());
+                dos.writeDouble(entry.getDurationSeconds());
+                dos.writeLong(entry.getBitRate());
+                dos.writeInt(entry.getWidth());
+                dos.writeInt(entry.getHeight());
+                dos.writeUTF(entry.getContainer());
+                dos.writeLong(entry.getSize());
+            }
 
-            if (command.equals("LIST")) {
-                // Send  video list
-                File folder = new File(VIDEO_FOLDER);
-                File[] files = folder.listFiles((dir, name) -> 
-                    name.endsWith(".mp4") || name.endsWith(".mkv") || name.endsWith(".avi"));
+        } else if (command.equals("JOBS")) {
+            // Background transcode progress
+            List<TranscodeJob> jobs = transcodeScheduler.getJobs();
+            dos.writeInt(jobs.size());
+            for (TranscodeJob job : jobs) {
+                dos.writeUTF(job.toString());
+            }
 
-                if (files == null) {
-                    logger.warn("No video files found in directory: {}", VIDEO_FOLDER);
-                    dos.writeInt(0);
-                    return;
-                }
+        } else if (command.equals("ADMISSION")) {
+            dos.writeUTF(admission.toString());
 
-                dos.writeInt(files.length);
-                for (File file : files) {
-                    dos.writeUTF(file.getName());
-                }
+        } else if (command.equals("CACHE")) {
+            dos.writeUTF(renditionCache + "; " + segmentCache);
 
-            } else if (command.equals("STREAM")) {
-                
-                String fileName = dis.readUTF();
-                String clientIP = dis.readUTF();
-                String protocol = dis.readUTF();
-
-                String filePath = VIDEO_FOLDER + File.separator + fileName;
-                String ffmpegCommand;
-                String sdpFileName = "stream_" + clientIP.replace(".", "_") + ".sdp";
-
-                
-                switch (protocol.toLowerCase()) {
-                    case "udp":
-                        ffmpegCommand = String.format("ffmpeg -re -i \"%s\" -f avi udp://%s:1234", 
-                            filePath, clientIP);
-                        break;
-                    case "tcp":
-                        ffmpegCommand = String.format("ffmpeg -re -i \"%s\" -f avi tcp://0.0.0.0:1234?listen", 
-                            filePath);
-                        break;
-                    case "rtp":
-                        //  SDP file for RTP 
-                        String sdpContent = createSDPContent(clientIP);
-                        dos.writeUTF(sdpContent);
-                        dos.writeUTF("END_SDP");
-                        dos.flush();
-
-                        ffmpegCommand = String.format(
-                            "ffmpeg -re -i \"%s\" -an -c:v copy -f rtp -sdp_file %s \"rtp://%s:5004?rtcpport=5008\"",
-                            filePath, sdpFileName, clientIP);
-                        break;
-                    default:
-                        logger.error("Unsupported protocol: {}", protocol);
-                        return;
-                }
+        } else if (command.equals("SESSIONS")) {
+            List<StreamSession> sessions = sessionManager.getSessions();
+            dos.writeInt(sessions.size());
+            for (StreamSession session : sessions) {
+                dos.writeUTF(session.toString());
+            }
+            List<FanoutChannel> channels = fanoutHub.getChannels();
+            dos.writeInt(channels.size());
+            for (FanoutChannel channel : channels) {
+                dos.writeUTF(channel.toString());
+            }
 
-                // Start FFmpeg streaming process
-                logger.info("Executing ffmpeg command: {}", ffmpegCommand);
-                ProcessBuilder pb = new ProcessBuilder(ffmpegCommand.split(" "));
-                pb.inheritIO();
-                pb.start();
+        } else if (command.equals("STATUS")) {
+            StreamSession session = sessionManager.get(dis.readUTF());
+            dos.writeUTF(session == null ? "UNKNOWN" : session.toString());
 
-                if (protocol.equalsIgnoreCase("rtp")) {
-                    
-                    deliverSDPFile(sdpFileName, dos);
-                }
+        } else if (command.equals("STOP")) {
+            boolean stopped = sessionManager.stop(dis.readUTF(), "stopped by client");
+            dos.writeUTF(stopped ? "OK" : "UNKNOWN");
+
+        } else if (command.equals("PROBE")) {
+            // the reply itself is the RTT sample; throughput is measured on the probe port with the token
+            long token = probeServer.issueToken();
+            if (token == 0) {
+                dos.writeUTF("BUSY");
+            } else {
+                dos.writeUTF("OK");
+                dos.writeInt(probeServer.getPort());
+                dos.writeLong(token);
+                dos.writeInt(ProbeServer.MAX_DURATION_MILLIS);
             }
 
+        } else if (command.equals("FIRSTFRAME")) {
+            // time to first frame as the client saw it, from its STREAM request
+            StreamSession session = sessionManager.get(dis.readUTF());
+            long millis = dis.readLong();
+            if (session != null) {
+                session.setFirstFrameMillis(millis);
+                metrics.firstFrame(TimeUnit.MILLISECONDS.toNanos(millis));
+                logger.info("Session {} first frame after {} ms (server setup {} ms)", session.getId(), millis,
+                    session.getSetupMillis());
+            }
+            dos.writeUTF(session == null ? "UNKNOWN" : "OK");
+
+        } else if (command.equals("REPORT")) {
+            // bandwidth measured by the client during playback
+            String id = dis.readUTF();
+            boolean tracked = adaptive.report(id, dis.readDouble());
+            dos.writeUTF(tracked ? "OK" : "UNKNOWN");
+
+        } else if (command.equals("STREAM")) {
+            logger.info("Received command: {} from {}", command, connection);
+            startStream(connection, dis, dos);
+
+        } else {
+            logger.warn("Unknown command: {}", command);
+            dos.writeUTF("ERROR");
+        }
+    }
+
+    // Reply: OK, session id and media port, plus the SDP for RTP or the path for HTTP;
+    // BUSY, seconds to wait before retrying and a reason; or ERROR and a message
+    private static void startStream(ControlConnection connection, DataInputStream dis, DataOutputStream dos)
+        throws Exception {
+        String fileName = dis.readUTF();
+        String clientIP = dis.readUTF();
+        String protocol = dis.readUTF().toLowerCase();
+        double downloadSpeedMbps = dis.readDouble();
+
+        if (!Arrays.asList("udp", "tcp", "rtp", "http", "hls", "dash").contains(protocol)) {
+            logger.error("Unsupported protocol: {}", protocol);
+            dos.writeUTF("ERROR");
+            dos.writeUTF("Unsupported protocol: " + protocol);
+            return;
+        }
+
+        StreamSession session;
+        try {
+            session = isHttpDelivery(protocol)
+                ? sessionManager.openShared(connection, fileName, clientIP, protocol, httpServer.getPort())
+                : sessionManager.open(connection, fileName, clientIP, protocol);
+        } catch (IOException e) {
+            logger.warn("Rejected stream of {}: {}", fileName, e.getMessage());
+            dos.writeUTF("ERROR");
+            dos.writeUTF(e.getMessage());
+            return;
+        }
+
+        if (ADAPTIVE) {
+            session.setRendition(adaptive.select(fileName, downloadSpeedMbps));
+        }
+        logger.info("Session {} reported {} Mbps, delivering {}", session.getId(), downloadSpeedMbps,
+            session.getRendition());
+        try {
+            launchStream(session, downloadSpeedMbps, dos);
+            session.markReady();
+            metrics.sessionReady(protocol, session.getSetupNanos());
+            logger.info("Session {} set up in {} ms", session.getId(), session.getSetupMillis());
+        } catch (ServerBusyException e) {
+            // nothing has been written yet; the client is told when to come back
+            metrics.sessionRejected();
+            sessionManager.stop(session.getId(), "busy");
+            logger.warn("Session {} rejected: {}", session.getId(), e.getMessage());
+            dos.writeUTF("BUSY");
+            dos.writeInt(e.getRetryAfterSeconds());
+            dos.writeUTF(e.getMessage());
         } catch (Exception e) {
-            logger.error("Error handling client: ", e);
+            metrics.sessionFailed();
+            sessionManager.stop(session.getId(), "setup failed");
+            throw e;
+        }
+    }
+
+    private static void launchStream(StreamSession session, double downloadSpeedMbps, DataOutputStream dos)
+        throws Exception {
+        String protocol = session.getProtocol();
+        String clientIP = session.getClientIP();
+        if (protocol.equals("hls") || protocol.equals("dash")) {
+            dos.writeUTF("OK");
+            dos.writeUTF(session.getId());
+            dos.writeInt(session.getPort());
+            dos.writeUTF(HttpFileServer.SEGMENT_PREFIX + segmentedPath(session, protocol));
+            return;
+        }
+
+        File video = resolveVideo(session.getRendition());
+        if (protocol.equals("http")) {
+            // pre-encoded file served as is, no encoder process
+            dos.writeUTF("OK");
+            dos.writeUTF(session.getId());
+            dos.writeInt(session.getPort());
+            dos.writeUTF(video.getName());
+            return;
+        }
+
+        if (protocol.equals("udp") || protocol.equals("tcp")) {
+            // joins the shared encoder for this file, starting it if nobody is watching yet
+            String id = session.getId();
+            Runnable onEnd = () -> sessionManager.stop(id, "stream ended");
+            FanoutSubscriber subscriber = protocol.equals("udp")
+                ? fanoutHub.subscribeUdp(id, video, new InetSocketAddress(clientIP, session.getPort()), onEnd)
+                : fanoutHub.subscribeTcp(id, video, session.getPort(), onEnd);
+            sessionManager.attach(session, () -> {
+                adaptive.untrack(id);
+                fanoutHub.unsubscribe(subscriber);
+            });
+            session.setEncoder(() -> {
+                FanoutChannel channel = subscriber.getChannel();
+                return channel == null ? null : channel.getProgress();
+            });
+            if (ADAPTIVE) {
+                adaptive.track(session, subscriber, downloadSpeedMbps);
+            }
+            dos.writeUTF("OK");
+            dos.writeUTF(id);
+            dos.writeInt(session.getPort());
+            return;
+        }
+
+        // without -sdp_file ffmpeg prints the SDP on stdout as soon as the RTP muxer is ready;
+        // progress goes to stderr
+        List<String> ffmpegCommand = new ArrayList<>();
+        ffmpegCommand.add(MediaProbe.FFMPEG);
+        ffmpegCommand.addAll(FfmpegProgress.STDERR_OPTIONS);
+        ffmpegCommand.addAll(Arrays.asList("-re", "-i", video.getPath(), "-an", "-c:v", "copy", "-f", "rtp",
+            String.format("rtp://%s:%d?rtcpport=%d", clientIP, session.getPort(), session.getRtcpPort())));
+
+        // the slot is held until the session closes; close actions may run twice, the release must not
+        admission.acquireLive();
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable releaseSlot = () -> {
+            if (released.compareAndSet(false, true)) admission.releaseLive();
+        };
+        logger.info("Session {} executing: {}", session.getId(), String.join(" ", ffmpegCommand));
+        Process process;
+        try {
+            process = new ProcessBuilder(ffmpegCommand).start();
+        } catch (IOException e) {
+            releaseSlot.run();
+            throw e;
+        }
+        sessionManager.attach(session, releaseSlot);
+        FfmpegProgress progress = FfmpegProgress.follow("rtp " + session.getId(), true, process.getErrorStream());
+        session.setEncoder(() -> progress);
+        sessionManager.attach(session, process);
+        String sdp = awaitSdp(session, process, video);
+
+        dos.writeUTF("OK");
+        dos.writeUTF(session.getId());
+        dos.writeInt(session.getPort());
+        for (String line : sdp.split("\n")) {
+            dos.writeUTF(line);
+        }
+        dos.writeUTF("END_SDP");
+    }
+
+    private static String awaitSdp(StreamSession session, Process process, File video) throws Exception {
+        long started = System.nanoTime();
+        String sdp;
+        try {
+            sdp = Sdp.fromProcess(process, session.getId()).get(SDP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            sdp = null;
+        }
+        if (sdp == null) {
+            logger.warn("Session {} got no SDP from ffmpeg, describing the stream from its probe", session.getId());
+            CatalogEntry entry = catalog.get(video.getName());
+            sdp = Sdp.fromProbe(entry != null && entry.isProbed() ? entry : MediaProbe.probe(video),
+                session.getClientIP(), session.getPort());
+        }
+        logger.info("Session {} SDP ready after {} ms", session.getId(), (System.nanoTime() - started) / 1_000_000);
+        return sdp;
+    }
+
+    // Waits for lazily built renditions; everything else is served as stored
+    private static boolean isHttpDelivery(String protocol) {
+        return protocol.equals("http") || protocol.equals("hls") || protocol.equals("dash");
+    }
+
+    // Manifest path inside the segment folder. DASH players pick their own representation; for HLS the
+    // media playlist of the selected rendition is returned, since ffplay does not switch variants itself.
+    private static String segmentedPath(StreamSession session, String protocol) throws Exception {
+        String name = getCleanBaseName(session.getFileName());
+        ensurePackaged(name).get(ON_DEMAND_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        if (protocol.equals("dash")) {
+            return name + "/" + Segmenter.DASH_MANIFEST;
+        }
+        Matcher matcher = RENDITION_NAME.matcher(session.getRendition());
+        if (!matcher.matches()) {
+            return name + "/" + Segmenter.HLS_MASTER;
+        }
+        return name + "/" + Segmenter.hlsPlaylist(Arrays.asList(RESOLUTIONS).indexOf(matcher.group(2)));
+    }
+
+    // Completes with the packaged directory, packaging the video first if a viewer is the first to ask
+    private static CompletableFuture<File> ensurePackaged(String name) {
+        if (segmenter.isPackaged(name)) {
+            return CompletableFuture.completedFuture(segmenter.directory(name));
         }
+        return packaging.computeIfAbsent(name, key -> {
+            List<CompletableFuture<File>> renditions = new ArrayList<>();
+            for (String res : RESOLUTIONS) {
+                renditions.add(renditionFile(key + "-" + res + "." + BASE_FORMAT));
+            }
+            CompletableFuture<File> result = CompletableFuture.allOf(renditions.toArray(new CompletableFuture[0]))
+                .thenCompose(ignored -> {
+                    TranscodeJob queued = segmenter.pending(key);
+                    if (queued != null) {
+                        // background packaging is already on its way
+                        return queued.completion();
+                    }
+                    List<File> files = new ArrayList<>();
+                    for (CompletableFuture<File> rendition : renditions) {
+                        File file = rendition.join();
+                        if (!file.isFile()) {
+                            throw new IllegalStateException(file.getName() + " is not transcoded yet");
+                        }
+                        files.add(file);
+                    }
+                    TranscodeJob job = segmenter.packageJob(key, files, REMUX_PRIORITY + ON_DEMAND_PRIORITY);
+                    transcodeScheduler.submit(job);
+                    return job.completion();
+                })
+                .thenApply(job -> {
+                    if (job.getState() != TranscodeJob.State.DONE || !segmenter.isPackaged(key)) {
+                        throw new IllegalStateException("Packaging failed for " + key);
+                    }
+                    return segmenter.directory(key);
+                });
+            result.whenComplete((dir, error) -> packaging.remove(key));
+            return result;
+        });
+    }
+
+    private static File resolveVideo(String fileName) throws Exception {
+        return renditionFile(fileName).get(ON_DEMAND_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+    }
+
+    // Completes once the file exists; in lazy mode a missing rendition is built first
+    private static CompletableFuture<File> renditionFile(String fileName) {
+        File file = new File(VIDEO_FOLDER, fileName);
+        if (!LAZY_RENDITIONS || !RENDITION_NAME.matcher(fileName).matches()) {
+            return CompletableFuture.completedFuture(file);
+        }
+        return renditionCache.get(fileName);
+    }
+
+    private static void registerCachedRenditions() {
+        for (CatalogEntry entry : catalog.getEntries()) {
+            if (RENDITION_NAME.matcher(entry.getName()).matches()) {
+                renditionCache.register(new File(VIDEO_FOLDER, entry.getName()));
+            }
+        }
+    }
+
+    // Names a stored file contributes to LIST
+    private static Collection<String> listedNames(String fileName) {
+        List<String> names = new ArrayList<>();
+        if (fileName.endsWith(".mp4") || fileName.endsWith(".mkv") || fileName.endsWith(".avi")) {
+            names.add(fileName);
+        }
+        if (LAZY_RENDITIONS && !RENDITION_FILE.matcher(fileName).matches()) {
+            // renditions that would be built on request
+            String cleanedName = getCleanBaseName(fileName);
+            for (String res : RESOLUTIONS) {
+                for (String format : FORMATS) {
+                    names.add(cleanedName + "-" + res + "." + format);
+                }
+            }
+        }
+        return names;
+    }
+
+    // Lazy mode: queue just the jobs needed for one rendition, ahead of any background work
+    private static CompletableFuture<File> produceRendition(String name) {
+        CompletableFuture<File> result = new CompletableFuture<>();
+        File folder = new File(VIDEO_FOLDER);
+        File target = new File(folder, name);
+        Matcher matcher = RENDITION_NAME.matcher(name);
+        File original = matcher.matches() ? findOriginal(folder, matcher.group(1)) : null;
+        if (original == null) {
+            result.completeExceptionally(new FileNotFoundException("No original for " + name));
+            return result;
+        }
+
+        List<TranscodeJob> jobs = convertVideo(original, folder, Collections.singletonList(matcher.group(2)),
+            Collections.singletonList(matcher.group(3)), ON_DEMAND_PRIORITY);
+        TranscodeJob producer = null;
+        List<TranscodeJob> all = new ArrayList<>();
+        for (TranscodeJob job : jobs) {
+            all.add(job);
+            all.addAll(job.getFollowUps());
+        }
+        for (TranscodeJob job : all) {
+            if (job.getOutputs().contains(target)) {
+                producer = job;
+            } else {
+                // intermediates, e.g. the mp4 an mkv is remuxed from, are cached too
+                job.completion().thenAccept(done -> {
+                    if (done.getState() != TranscodeJob.State.DONE) return;
+                    for (File output : done.getOutputs()) {
+                        renditionCache.register(output);
+                    }
+                });
+            }
+        }
+        if (producer == null) {
+            result.complete(target);
+            return result;
+        }
+
+        producer.completion().thenAccept(done -> {
+            if (done.getState() == TranscodeJob.State.DONE) {
+                result.complete(target);
+            } else {
+                result.completeExceptionally(new IOException("Transcode failed for " + name));
+            }
+        });
+        for (TranscodeJob job : jobs) {
+            transcodeScheduler.submit(job);
+        }
+        return result;
+    }
+
+    private static File findOriginal(File folder, String cleanedName) {
+        for (File original : listOriginals(folder)) {
+            if (getCleanBaseName(original.getName()).equals(cleanedName)) {
+                return original;
+            }
+        }
+        return null;
+    }
+
+    private static List<File> listOriginals(File folder) {
+        List<File> originals = new ArrayList<>();
+        for (CatalogEntry entry : catalog.getEntries()) {
+            if (!RENDITION_FILE.matcher(entry.getName()).matches()) {
+                originals.add(new File(folder, entry.getName()));
+            }
+        }
+        return originals;
     }
 
     
@@ -119,74 +582,101 @@ public class ServerMain {
         if (!folder.exists()) return;
 
         
-        File[] originals = folder.listFiles((dir, name) -> 
-            !name.matches(".*[-_](240p|360p|480p|720p|1080p)\\.(mp4|mkv|avi)"));
-
-        if (originals == null) return;
+        List<File> originals = listOriginals(folder);
 
         //  resolution/format 
+        int queued = 0;
         for (File original : originals) {
-            String cleanedName = getCleanBaseName(original.getName());
-            for (String res : RESOLUTIONS) {
-                String scale = getScale(res);
-                for (String format : FORMATS) {
-                    String newName = cleanedName + "-" + res + "." + format;
-                    File outputFile = new File(folder, newName);
-                    if (outputFile.exists()) continue;
-
-                    
-                    convertVideo(original, outputFile, scale);
-                }
+            for (TranscodeJob job : convertVideo(original, folder, Arrays.asList(RESOLUTIONS), Arrays.asList(FORMATS), 0)) {
+                transcodeScheduler.submit(job);
+                queued++;
             }
         }
+        logger.info("Queued {} conversion jobs", queued);
     }
 
-    // Video conversiond
-    private static void convertVideo(File input, File output, String scale) {
-        String cmd = String.format("ffmpeg -i \"%s\" -vf scale=%s \"%s\"", 
-            input.getAbsolutePath(), scale, output.getAbsolutePath());
+    // Video conversion: decode the original once for the whole ladder, then remux the other formats
+    // priorityOffset: 0 for background work, ON_DEMAND_PRIORITY when a viewer is waiting
+    private static List<TranscodeJob> convertVideo(File original, File folder, List<String> resolutions,
+                                                   List<String> formats, int priorityOffset) {
+        String cleanedName = getCleanBaseName(original.getName());
+        List<String> ladder = new ArrayList<>();
+        List<File> ladderOutputs = new ArrayList<>();
+        List<TranscodeJob> remuxes = new ArrayList<>();
+        List<TranscodeJob> jobs = new ArrayList<>();
 
-        try {
-            logger.info("Creating: {}", output.getName());
-            Process process = new ProcessBuilder(cmd.split(" ")).inheritIO().start();
-            process.waitFor();
-        } catch (Exception e) {
-            logger.error("Error converting video {}: ", input.getName(), e);
-        }
-    }
-
-    // sdp file 
-    private static String createSDPContent(String clientIP) {
-        return String.format(
-            "v=0\n" +
-            "o=- 0 0 IN IP4 %s\n" +
-            "s=No Name\n" +
-            "c=IN IP4 %s\n" +
-            "t=0 0\n" +
-            "a=tool:libavformat\n" +
-            "m=video 5004 RTP/AVP 96\n" +
-            "b=AS:3100\n" +
-            "a=rtpmap:96 MP4V-ES/90000\n" +
-            "a=fmtp:96 profile-level-id=1\n",
-            clientIP, clientIP);
-    }
-
-    //  SDP file delivery 
-    private static void deliverSDPFile(String sdpFileName, DataOutputStream dos) 
-        throws InterruptedException, IOException {
-        Thread.sleep(1000); 
-        File sdpFile = new File(sdpFileName);
-        if (sdpFile.exists()) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(sdpFile))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    dos.writeUTF(line);
-                }
+        for (String res : resolutions) {
+            File base = new File(folder, cleanedName + "-" + res + "." + BASE_FORMAT);
+            List<TranscodeJob> copies = new ArrayList<>();
+            for (String format : formats) {
+                File outputFile = new File(folder, cleanedName + "-" + res + "." + format);
+                if (format.equals(BASE_FORMAT) || outputFile.exists()) continue;
+                copies.add(remuxVideo(base, outputFile, format, priorityOffset));
+            }
+
+            boolean baseMissing = !base.exists();
+            if (baseMissing && (formats.contains(BASE_FORMAT) || !copies.isEmpty())) {
+                ladder.add(res);
+                ladderOutputs.add(base);
+                remuxes.addAll(copies);
+            } else {
+                jobs.addAll(copies);
             }
-        } else {
-            logger.error("SDP file not found: {}", sdpFileName);
         }
-        dos.writeUTF("END_SDP");
+
+        // the full mp4 ladder is also packaged into HLS/DASH segments
+        TranscodeJob packageJob = null;
+        if (resolutions.size() == RESOLUTIONS.length && formats.contains(BASE_FORMAT)
+            && !segmenter.isPackaged(cleanedName) && segmenter.pending(cleanedName) == null) {
+            List<File> renditions = new ArrayList<>();
+            for (String res : resolutions) {
+                renditions.add(new File(folder, cleanedName + "-" + res + "." + BASE_FORMAT));
+            }
+            packageJob = segmenter.packageJob(cleanedName, renditions, REMUX_PRIORITY + priorityOffset);
+        }
+
+        if (!ladder.isEmpty()) {
+            TranscodeJob encode = new TranscodeJob(ENCODE_PRIORITY + priorityOffset, original, ladderOutputs, ladderArgs(ladder, ladderOutputs));
+            for (TranscodeJob remux : remuxes) {
+                encode.then(remux);
+            }
+            if (packageJob != null) encode.then(packageJob);
+            jobs.add(0, encode);
+        } else if (packageJob != null) {
+            jobs.add(packageJob);
+        }
+        return jobs;
+    }
+
+    // One split/scale graph feeding every rendition of the ladder
+    private static List<String> ladderArgs(List<String> resolutions, List<File> outputs) {
+        StringBuilder graph = new StringBuilder("[0:v]split=").append(resolutions.size());
+        for (int i = 0; i < resolutions.size(); i++) {
+            graph.append("[s").append(i).append("]");
+        }
+        for (int i = 0; i < resolutions.size(); i++) {
+            graph.append(";[s").append(i).append("]scale=").append(getScale(resolutions.get(i)))
+                .append("[v").append(i).append("]");
+        }
+
+        List<String> args = new ArrayList<>(Arrays.asList("-filter_complex", graph.toString()));
+        for (int i = 0; i < outputs.size(); i++) {
+            // keyframes on every segment boundary keep the renditions switchable at the same points
+            args.addAll(Arrays.asList("-map", "[v" + i + "]", "-map", "0:a?",
+                "-c:v", "libx264", "-preset", "veryfast", "-c:a", "aac",
+                "-force_key_frames", "expr:gte(t,n_forced*" + Segmenter.SEGMENT_SECONDS + ")"));
+            args.add(outputs.get(i).getAbsolutePath());
+        }
+        return args;
+    }
+
+    // Container change only, no re-encode
+    private static TranscodeJob remuxVideo(File base, File output, String format, int priorityOffset) {
+        List<String> args = new ArrayList<>(Arrays.asList("-map", "0", "-c", "copy"));
+        if (format.equals("avi")) {
+            args.addAll(Arrays.asList("-bsf:v", "h264_mp4toannexb"));
+        }
+        return new TranscodeJob(REMUX_PRIORITY + priorityOffset, base, output, args);
     }
 
     // Resolution to FFmpeg 
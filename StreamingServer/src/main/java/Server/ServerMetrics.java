@@ -0,0 +1,325 @@
+package Server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latency histograms for commands and session setup plus live gauges of sessions and encoders.
+// Published over JMX and as Prometheus text on a loopback-only HTTP port.
+public class ServerMetrics implements ServerMetricsMBean {
+    private static final Logger logger = LogManager.getLogger(ServerMetrics.class);
+    // command names come from clients; anything past this many is counted as "other"
+    private static final int MAX_COMMANDS = 32;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final SessionManager sessions;
+    private final TranscodeScheduler scheduler;
+    private final AdmissionControl admission;
+    private final Map<String, LatencyHistogram> commands = new ConcurrentHashMap<>();
+    private final LatencyHistogram allCommands = new LatencyHistogram();
+    private final Map<String, LatencyHistogram> setups = new ConcurrentHashMap<>();
+    private final LatencyHistogram allSetups = new LatencyHistogram();
+    private final LatencyHistogram firstFrame = new LatencyHistogram();
+    private final LongAdder setupFailures = new LongAdder();
+    private final LongAdder rejectedSessions = new LongAdder();
+    private volatile ControlServer control;
+
+    public ServerMetrics(SessionManager sessions, TranscodeScheduler scheduler, AdmissionControl admission) {
+        this.sessions = sessions;
+        this.scheduler = scheduler;
+        this.admission = admission;
+    }
+
+    // Registers the MBean and, if port is positive, starts the HTTP endpoint on 127.0.0.1
+    public void start(int port) throws Exception {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("Server:type=StreamingMetrics"));
+        if (port <= 0) return;
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", this::serve);
+        http.start();
+        logger.info("Metrics on http://127.0.0.1:{}/metrics", port);
+    }
+
+    void watch(ControlServer control) {
+        this.control = control;
+    }
+
+    public void commandHandled(String command, long nanos) {
+        String key = commands.containsKey(command) || commands.size() < MAX_COMMANDS ? command : "other";
+        commands.computeIfAbsent(key, k -> new LatencyHistogram()).record(nanos);
+        allCommands.record(nanos);
+    }
+
+    public void sessionReady(String protocol, long nanos) {
+        setups.computeIfAbsent(protocol, k -> new LatencyHistogram()).record(nanos);
+        allSetups.record(nanos);
+    }
+
+    public void sessionFailed() {
+        setupFailures.increment();
+    }
+
+    public void sessionRejected() {
+        rejectedSessions.increment();
+    }
+
+    public void firstFrame(long nanos) {
+        firstFrame.record(nanos);
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return sessions.getSessions().size();
+    }
+
+    @Override
+    public int getControlConnections() {
+        ControlServer server = control;
+        return server == null ? 0 : server.getConnectionCount();
+    }
+
+    @Override
+    public int getFfmpegProcesses() {
+        return FfmpegProgress.getRunning().size();
+    }
+
+    @Override
+    public int getQueuedTranscodes() {
+        return scheduler.getPendingCount();
+    }
+
+    @Override
+    public long getCommandCount() {
+        return allCommands.getCount();
+    }
+
+    @Override
+    public double getCommandP99Millis() {
+        return allCommands.getPercentileMillis(0.99);
+    }
+
+    @Override
+    public long getSetupCount() {
+        return allSetups.getCount();
+    }
+
+    @Override
+    public long getSetupFailures() {
+        return setupFailures.sum();
+    }
+
+    @Override
+    public long getRejectedSessions() {
+        return rejectedSessions.sum();
+    }
+
+    @Override
+    public int getLiveEncoders() {
+        return admission.getLiveEncoders();
+    }
+
+    @Override
+    public int getBackgroundTranscodes() {
+        return admission.getBackgroundTranscodes();
+    }
+
+    @Override
+    public double getCpuUtilization() {
+        return admission.getUtilization();
+    }
+
+    @Override
+    public double getSetupP50Millis() {
+        return allSetups.getPercentileMillis(0.5);
+    }
+
+    @Override
+    public double getSetupP99Millis() {
+        return allSetups.getPercentileMillis(0.99);
+    }
+
+    @Override
+    public double getFirstFrameP50Millis() {
+        return firstFrame.getPercentileMillis(0.5);
+    }
+
+    @Override
+    public double getEncoderFps() {
+        double sum = 0;
+        for (FfmpegProgress encoder : FfmpegProgress.getRunning()) sum += encoder.getFps();
+        return sum;
+    }
+
+    @Override
+    public double getEncoderBitrateKbps() {
+        double sum = 0;
+        for (FfmpegProgress encoder : FfmpegProgress.getRunning()) sum += encoder.getBitrateKbps();
+        return sum;
+    }
+
+    @Override
+    public long getEncoderBytesOut() {
+        long sum = 0;
+        for (FfmpegProgress encoder : FfmpegProgress.getRunning()) sum += encoder.getBytesOut();
+        return sum;
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        long sum = 0;
+        for (FfmpegProgress encoder : FfmpegProgress.getRunning()) sum += encoder.getDroppedFrames();
+        return sum;
+    }
+
+    // Below 1.0 a live encoder cannot keep up: the first sign the box is saturated. 0 without live encoders.
+    @Override
+    public double getSlowestLiveSpeed() {
+        double slowest = 0;
+        for (FfmpegProgress encoder : FfmpegProgress.getRunning()) {
+            if (!encoder.isLive() || encoder.getSpeed() <= 0) continue;
+            slowest = slowest == 0 ? encoder.getSpeed() : Math.min(slowest, encoder.getSpeed());
+        }
+        return slowest;
+    }
+
+    @Override
+    public double getSystemLoadAverage() {
+        return ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+    }
+
+    @Override
+    public String[] getCommandLatencies() {
+        return describe(commands);
+    }
+
+    @Override
+    public String[] getSetupLatencies() {
+        return describe(setups);
+    }
+
+    @Override
+    public String[] getEncoders() {
+        List<String> lines = new ArrayList<>();
+        for (FfmpegProgress encoder : FfmpegProgress.getRunning()) {
+            lines.add(encoder.getName() + ": " + encoder);
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    private static String[] describe(Map<String, LatencyHistogram> histograms) {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            lines.add(entry.getKey() + " " + entry.getValue());
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        byte[] body = prometheusText().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    // Prometheus text exposition format
+    String prometheusText() {
+        StringBuilder out = new StringBuilder();
+        gauge(out, "streaming_sessions", "Open stream sessions", getActiveSessions());
+        gauge(out, "streaming_control_connections", "Open control connections", getControlConnections());
+        gauge(out, "streaming_ffmpeg_processes", "Running ffmpeg processes", getFfmpegProcesses());
+        gauge(out, "streaming_transcodes_queued", "Transcode jobs queued or running", getQueuedTranscodes());
+        gauge(out, "streaming_live_encoders", "Live encoder slots in use", getLiveEncoders());
+        gauge(out, "streaming_live_encoders_max", "Live encoder slots", admission.getMaxLive());
+        gauge(out, "streaming_background_transcodes", "Background transcode slots in use", getBackgroundTranscodes());
+        gauge(out, "streaming_background_transcodes_max", "Background transcode slots", admission.getMaxBackground());
+        gauge(out, "streaming_cpu_utilization", "Machine CPU use as seen by admission control", getCpuUtilization());
+        gauge(out, "streaming_sessions_rejected_total", "STREAM requests answered BUSY", getRejectedSessions());
+        gauge(out, "streaming_session_setup_failures_total", "STREAM requests that failed during setup",
+            getSetupFailures());
+        gauge(out, "streaming_system_load_average", "One-minute system load average", getSystemLoadAverage());
+        gauge(out, "streaming_processors", "Processors available to the JVM",
+            Runtime.getRuntime().availableProcessors());
+
+        summary(out, "streaming_command_seconds", "Control command handling time", "command", commands);
+        summary(out, "streaming_session_setup_seconds", "STREAM request to reply", "protocol", setups);
+        Map<String, LatencyHistogram> ttff = new TreeMap<>();
+        ttff.put("all", firstFrame);
+        summary(out, "streaming_first_frame_seconds", "Time to first frame reported by clients", "sessions", ttff);
+
+        List<FfmpegProgress> encoders = FfmpegProgress.getRunning();
+        encoderGauge(out, "streaming_encoder_fps", "Frames per second", encoders, FfmpegProgress::getFps);
+        encoderGauge(out, "streaming_encoder_bitrate_kbps", "Output bitrate", encoders,
+            FfmpegProgress::getBitrateKbps);
+        encoderGauge(out, "streaming_encoder_speed", "Encoding speed relative to real time", encoders,
+            FfmpegProgress::getSpeed);
+        encoderGauge(out, "streaming_encoder_dropped_frames", "Frames dropped", encoders,
+            encoder -> encoder.getDroppedFrames());
+        encoderGauge(out, "streaming_encoder_bytes_out", "Bytes written", encoders,
+            encoder -> encoder.getBytesOut());
+        return out.toString();
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, double value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+            .append("# TYPE ").append(name).append(" gauge\n")
+            .append(name).append(' ').append(number(value)).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String help, String label,
+                                Map<String, LatencyHistogram> histograms) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+            .append("# TYPE ").append(name).append(" summary\n");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            String labels = label + "=\"" + escape(entry.getKey()) + "\"";
+            LatencyHistogram histogram = entry.getValue();
+            for (double quantile : QUANTILES) {
+                out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(number(histogram.getPercentileMillis(quantile) / 1000)).append('\n');
+            }
+            out.append(name).append("_sum{").append(labels).append("} ")
+                .append(number(histogram.getSumMillis() / 1000)).append('\n');
+            out.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+        }
+    }
+
+    private interface EncoderValue {
+        double of(FfmpegProgress encoder);
+    }
+
+    private static void encoderGauge(StringBuilder out, String name, String help, List<FfmpegProgress> encoders,
+                                     EncoderValue value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+            .append("# TYPE ").append(name).append(" gauge\n");
+        for (FfmpegProgress encoder : encoders) {
+            out.append(name).append("{encoder=\"").append(escape(encoder.getName())).append("\",live=\"")
+                .append(encoder.isLive()).append("\"} ").append(number(value.of(encoder))).append('\n');
+        }
+    }
+
+    private static String number(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15
+            ? Long.toString((long) value) : String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
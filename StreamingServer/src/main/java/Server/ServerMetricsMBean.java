@@ -0,0 +1,52 @@
+package Server;
+
+// What ServerMetrics exposes over JMX
+public interface ServerMetricsMBean {
+    int getActiveSessions();
+
+    int getControlConnections();
+
+    int getFfmpegProcesses();
+
+    int getQueuedTranscodes();
+
+    long getCommandCount();
+
+    double getCommandP99Millis();
+
+    long getSetupCount();
+
+    long getSetupFailures();
+
+    long getRejectedSessions();
+
+    int getLiveEncoders();
+
+    int getBackgroundTranscodes();
+
+    double getCpuUtilization();
+
+    double getSetupP50Millis();
+
+    double getSetupP99Millis();
+
+    double getFirstFrameP50Millis();
+
+    double getEncoderFps();
+
+    double getEncoderBitrateKbps();
+
+    long getEncoderBytesOut();
+
+    long getDroppedFrames();
+
+    double getSlowestLiveSpeed();
+
+    double getSystemLoadAverage();
+
+    String[] getCommandLatencies();
+
+    String[] getSetupLatencies();
+
+    String[] getEncoders();
+}
@@ -0,0 +1,125 @@
+package Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Tracks live stream sessions, their port blocks and encoder processes
+public class SessionManager {
+    private static final Logger logger = LogManager.getLogger(SessionManager.class);
+    private static final long REAP_INTERVAL_MILLIS = 500;
+
+    private final PortAllocator ports;
+    private final Map<String, StreamSession> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "session-reaper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public SessionManager(PortAllocator ports) {
+        this.ports = ports;
+        reaper.scheduleWithFixedDelay(this::reapExited, REAP_INTERVAL_MILLIS, REAP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public StreamSession open(Object owner, String fileName, String clientIP, String protocol) throws IOException {
+        int port = ports.allocate();
+        if (port < 0) {
+            throw new IOException("No free stream ports");
+        }
+        return register(new StreamSession(nextId(), owner, fileName, clientIP, protocol, port, true));
+    }
+
+    // Session served on a shared port, so nothing is taken from the pool
+    public StreamSession openShared(Object owner, String fileName, String clientIP, String protocol, int sharedPort) {
+        return register(new StreamSession(nextId(), owner, fileName, clientIP, protocol, sharedPort, false));
+    }
+
+    private String nextId() {
+        return "S" + sequence.incrementAndGet();
+    }
+
+    private StreamSession register(StreamSession session) {
+        sessions.put(session.getId(), session);
+        logger.info("Opened session {}", session);
+        return session;
+    }
+
+    public void attach(StreamSession session, Process process) {
+        session.attach(process);
+        if (!sessions.containsKey(session.getId())) {
+            // stopped while the encoder was starting
+            process.destroy();
+        }
+    }
+
+    public void attach(StreamSession session, Runnable stopAction) {
+        session.attach(stopAction);
+        if (!sessions.containsKey(session.getId())) {
+            stopAction.run();
+        }
+    }
+
+    public StreamSession get(String id) {
+        return sessions.get(id);
+    }
+
+    public List<StreamSession> getSessions() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    public boolean stop(String id, String reason) {
+        StreamSession session = sessions.get(id);
+        if (session == null) return false;
+        close(session, reason);
+        return true;
+    }
+
+    // The control connection that opened these sessions went away
+    public void stopOwnedBy(Object owner) {
+        for (StreamSession session : sessions.values()) {
+            if (session.getOwner() == owner) {
+                close(session, "client disconnected");
+            }
+        }
+    }
+
+    private void reapExited() {
+        for (StreamSession session : sessions.values()) {
+            Process process = session.getProcess();
+            if (process != null && !process.isAlive()) {
+                close(session, "encoder exited with " + process.exitValue());
+            }
+        }
+    }
+
+    private void close(StreamSession session, String reason) {
+        if (sessions.remove(session.getId()) == null) return;
+        Process process = session.getProcess();
+        if (process != null && process.isAlive()) {
+            process.destroy();
+        }
+        for (Runnable action : session.getCloseActions()) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                logger.warn("Error closing session {}: ", session.getId(), e);
+            }
+        }
+        if (session.hasPooledPort()) {
+            ports.release(session.getPort());
+        }
+        session.markStopped(reason);
+        logger.info("Closed session {}", session);
+    }
+}
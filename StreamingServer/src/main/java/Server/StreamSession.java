@@ -0,0 +1,156 @@
+package Server;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+
+// One viewer's stream: its ports, its encoder process and the connection that owns it
+public class StreamSession {
+    public enum State { STARTING, STREAMING, STOPPED }
+
+    private final String id;
+    private final Object owner;
+    private final String fileName;
+    private final String clientIP;
+    private final String protocol;
+    private final int port;
+    private final boolean pooledPort;
+    private final long createdAt = System.currentTimeMillis();
+    private final long createdNanos = System.nanoTime();
+
+    // file actually being delivered; adaptive sessions move along the rendition ladder
+    private volatile String rendition;
+    private volatile Process process;
+    // counters of the encoder feeding this viewer; fan-out viewers follow their current channel
+    private volatile Supplier<FfmpegProgress> encoder = () -> null;
+    private final List<Runnable> closeActions = new CopyOnWriteArrayList<>();
+    private volatile State state = State.STARTING;
+    // handshake timing: server-side setup, and first frame as reported by the client
+    private volatile long setupNanos = -1;
+    private volatile long firstFrameMillis = -1;
+    private volatile String stopReason;
+
+    public StreamSession(String id, Object owner, String fileName, String clientIP, String protocol, int port,
+                         boolean pooledPort) {
+        this.id = id;
+        this.owner = owner;
+        this.fileName = fileName;
+        this.rendition = fileName;
+        this.clientIP = clientIP;
+        this.protocol = protocol;
+        this.port = port;
+        this.pooledPort = pooledPort;
+    }
+
+    void attach(Process process) {
+        this.process = process;
+        this.state = State.STREAMING;
+    }
+
+    // Delivery without a dedicated encoder process; stopAction runs when the session closes
+    void attach(Runnable stopAction) {
+        closeActions.add(stopAction);
+        this.state = State.STREAMING;
+    }
+
+    List<Runnable> getCloseActions() {
+        return closeActions;
+    }
+
+    void markStopped(String reason) {
+        this.state = State.STOPPED;
+        this.stopReason = reason;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Object getOwner() {
+        return owner;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getRendition() {
+        return rendition;
+    }
+
+    public void setRendition(String rendition) {
+        this.rendition = rendition;
+    }
+
+    public String getClientIP() {
+        return clientIP;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    // Media port; RTP sends RTCP on the next one
+    public int getPort() {
+        return port;
+    }
+
+    public int getRtcpPort() {
+        return port + 1;
+    }
+
+    // False for delivery on a shared server port, e.g. HTTP
+    public boolean hasPooledPort() {
+        return pooledPort;
+    }
+
+    public Process getProcess() {
+        return process;
+    }
+
+    void setEncoder(Supplier<FfmpegProgress> encoder) {
+        this.encoder = encoder;
+    }
+
+    public FfmpegProgress getEncoder() {
+        return encoder.get();
+    }
+
+    void markReady() {
+        setupNanos = System.nanoTime() - createdNanos;
+    }
+
+    public long getSetupNanos() {
+        return setupNanos;
+    }
+
+    public long getSetupMillis() {
+        return setupNanos < 0 ? -1 : setupNanos / 1_000_000;
+    }
+
+    public void setFirstFrameMillis(long firstFrameMillis) {
+        this.firstFrameMillis = firstFrameMillis;
+    }
+
+    public long getFirstFrameMillis() {
+        return firstFrameMillis;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getUptimeMillis() {
+        return System.currentTimeMillis() - createdAt;
+    }
+
+    @Override
+    public String toString() {
+        FfmpegProgress progress = getEncoder();
+        return String.format("%s %s %s%s -> %s:%d %s%s%s%s (%ds)", id, protocol.toUpperCase(), fileName,
+            rendition.equals(fileName) ? "" : " as " + rendition, clientIP, port, state,
+            firstFrameMillis < 0 ? "" : " ttff=" + firstFrameMillis + "ms",
+            progress == null ? "" : " " + progress,
+            stopReason == null ? "" : " [" + stopReason + "]", getUptimeMillis() / 1000);
+    }
+}
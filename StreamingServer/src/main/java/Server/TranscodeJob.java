@@ -0,0 +1,193 @@
+package Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One ffmpeg run over a single input, ordered by priority then submission
+public class TranscodeJob implements Runnable, Comparable<TranscodeJob> {
+    private static final Logger logger = LogManager.getLogger(TranscodeJob.class);
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    // background jobs run at a lower OS priority so live encoders win the CPU
+    private static final boolean NICE = new File("/usr/bin/nice").canExecute() || new File("/bin/nice").canExecute();
+
+    public enum State { QUEUED, RUNNING, DONE, FAILED }
+
+    private final long id = SEQUENCE.incrementAndGet();
+    private final int priority;
+    private final File input;
+    private final List<File> outputs;
+    private final List<String> ffmpegArgs;
+    private final List<TranscodeJob> followUps = new CopyOnWriteArrayList<>();
+    private final CompletableFuture<TranscodeJob> completion = new CompletableFuture<>();
+
+    private volatile State state = State.QUEUED;
+    private volatile double progress;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+
+    // priority: lower values run first
+    public TranscodeJob(int priority, File input, File output, List<String> ffmpegArgs) {
+        this(priority, input, Collections.singletonList(output), append(ffmpegArgs, output));
+    }
+
+    // ffmpegArgs carries the output paths itself, for runs with several outputs
+    public TranscodeJob(int priority, File input, List<File> outputs, List<String> ffmpegArgs) {
+        this.priority = priority;
+        this.input = input;
+        this.outputs = Collections.unmodifiableList(new ArrayList<>(outputs));
+        this.ffmpegArgs = Collections.unmodifiableList(new ArrayList<>(ffmpegArgs));
+    }
+
+    private static List<String> append(List<String> args, File output) {
+        List<String> all = new ArrayList<>(args);
+        all.add(output.getAbsolutePath());
+        return all;
+    }
+
+    // Jobs that consume this job's outputs; queued once it succeeds
+    public TranscodeJob then(TranscodeJob followUp) {
+        followUps.add(followUp);
+        return this;
+    }
+
+    @Override
+    public void run() {
+        state = State.RUNNING;
+        startedAt = System.currentTimeMillis();
+        double duration = MediaProbe.durationSeconds(input);
+
+        List<String> command = new ArrayList<>();
+        if (NICE && priority >= 0) {
+            command.addAll(Arrays.asList("nice", "-n", "10"));
+        }
+        command.add(MediaProbe.FFMPEG);
+        command.add("-y");
+        command.add("-nostats");
+        command.add("-loglevel");
+        command.add("error");
+        command.add("-progress");
+        command.add("pipe:1");
+        command.add("-i");
+        command.add(input.getAbsolutePath());
+        command.addAll(ffmpegArgs);
+
+        FfmpegProgress encoder = new FfmpegProgress("transcode #" + id + " " + describeOutputs(), false);
+        try {
+            logger.info("Creating: {}", describeOutputs());
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            Process process = pb.start();
+
+            // -progress writes key=value blocks; the encoded position gives the share done
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (encoder.accept(line) && duration > 0) {
+                        progress = Math.max(0, Math.min(1.0, encoder.getOutTimeSeconds() / duration));
+                    }
+                }
+            }
+
+            int exitCode = process.waitFor();
+            if (exitCode == 0) {
+                progress = 1.0;
+                state = State.DONE;
+            } else {
+                logger.error("ffmpeg exited with code {} while creating {}", exitCode, describeOutputs());
+                state = State.FAILED;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            state = State.FAILED;
+        } catch (Exception e) {
+            logger.error("Error converting video {}: ", input.getName(), e);
+            state = State.FAILED;
+        } finally {
+            encoder.finish();
+            finishedAt = System.currentTimeMillis();
+            completion.complete(this);
+        }
+    }
+
+    // Marks a job that will never run, e.g. because the job it depends on failed
+    void fail() {
+        state = State.FAILED;
+        completion.complete(this);
+        for (TranscodeJob followUp : followUps) {
+            followUp.fail();
+        }
+    }
+
+    @Override
+    public int compareTo(TranscodeJob other) {
+        if (priority != other.priority) {
+            return Integer.compare(priority, other.priority);
+        }
+        return Long.compare(id, other.id);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public File getInput() {
+        return input;
+    }
+
+    public List<File> getOutputs() {
+        return outputs;
+    }
+
+    public List<TranscodeJob> getFollowUps() {
+        return followUps;
+    }
+
+    // Completes with this job once it has finished, successfully or not
+    public CompletableFuture<TranscodeJob> completion() {
+        return completion;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public double getProgress() {
+        return progress;
+    }
+
+    public long getElapsedMillis() {
+        if (startedAt == 0) return 0;
+        long end = finishedAt == 0 ? System.currentTimeMillis() : finishedAt;
+        return end - startedAt;
+    }
+
+    private String describeOutputs() {
+        StringBuilder names = new StringBuilder();
+        for (File output : outputs) {
+            if (names.length() > 0) names.append(", ");
+            names.append(output.getName());
+        }
+        return names.toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("#%d %s %s %.0f%% (%ds)", id, describeOutputs(), state,
+            progress * 100, getElapsedMillis() / 1000);
+    }
+}
@@ -0,0 +1,108 @@
+package Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Background transcode queue: one worker per core, lowest priority value first.
+// Negative priorities are jobs a viewer is waiting for; the rest also need a background slot from admission.
+public class TranscodeScheduler {
+    private static final Logger logger = LogManager.getLogger(TranscodeScheduler.class);
+    // how long a worker waits after its job was refused a slot, before taking the next one
+    private static final long ADMISSION_RETRY_MILLIS = 250;
+
+    private final ThreadPoolExecutor executor;
+    private final AdmissionControl admission;
+    private final List<TranscodeJob> jobs = new CopyOnWriteArrayList<>();
+
+    public TranscodeScheduler(AdmissionControl admission) {
+        this(Runtime.getRuntime().availableProcessors(), admission);
+    }
+
+    public TranscodeScheduler(int workers, AdmissionControl admission) {
+        this.admission = admission;
+        AtomicInteger threadCount = new AtomicInteger();
+        // the queue only ever holds QueuedJob, so execute() keeps the job ordering
+        executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+            new PriorityBlockingQueue<Runnable>(), r -> {
+                Thread t = new Thread(r, "transcode-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+        // with idle workers already waiting, every job goes through the priority queue
+        executor.prestartAllCoreThreads();
+        logger.info("Transcode scheduler started with {} workers", workers);
+    }
+
+    public TranscodeJob submit(TranscodeJob job) {
+        jobs.add(job);
+        executor.execute(new QueuedJob(job));
+        return job;
+    }
+
+    public List<TranscodeJob> getJobs() {
+        return new ArrayList<>(jobs);
+    }
+
+    public int getPendingCount() {
+        int pending = 0;
+        for (TranscodeJob job : jobs) {
+            if (job.getState() == TranscodeJob.State.QUEUED || job.getState() == TranscodeJob.State.RUNNING) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private class QueuedJob implements Runnable, Comparable<QueuedJob> {
+        private final TranscodeJob job;
+
+        QueuedJob(TranscodeJob job) {
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            if (!admission.tryAcquireBackground(job.getPriority() < 0)) {
+                // back into the queue, where anything more urgent is taken first
+                executor.execute(this);
+                try {
+                    Thread.sleep(ADMISSION_RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            try {
+                job.run();
+            } finally {
+                admission.releaseBackground();
+            }
+            for (TranscodeJob followUp : job.getFollowUps()) {
+                if (job.getState() == TranscodeJob.State.DONE) {
+                    submit(followUp);
+                } else {
+                    followUp.fail();
+                }
+            }
+            logger.info("Finished {} ({} jobs pending)", job, getPendingCount());
+        }
+
+        @Override
+        public int compareTo(QueuedJob other) {
+            return job.compareTo(other.job);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Just enough MPEG-TS parsing to find the video PID and its random access points.
+// Tables are assumed to fit in one packet, which holds for ffmpeg's mpegts muxer.
+final class TsPackets {
+    static final int PACKET_SIZE = 188;
+    static final byte SYNC_BYTE = 0x47;
+
+    private TsPackets() {
+    }
+
+    static int pid(byte[] b, int off) {
+        return ((b[off + 1] & 0x1F) << 8) | (b[off + 2] & 0xFF);
+    }
+
+    static boolean payloadStart(byte[] b, int off) {
+        return (b[off + 1] & 0x40) != 0;
+    }
+
+    // random_access_indicator in the adaptation field
+    static boolean randomAccess(byte[] b, int off) {
+        int adaptation = (b[off + 3] >> 4) & 0x3;
+        if (adaptation != 2 && adaptation != 3) return false;
+        return (b[off + 4] & 0xFF) > 0 && (b[off + 5] & 0x40) != 0;
+    }
+
+    // Start of the section after the pointer field, or -1
+    private static int sectionStart(byte[] b, int off) {
+        if (b[off] != SYNC_BYTE || !payloadStart(b, off)) return -1;
+        int adaptation = (b[off + 3] >> 4) & 0x3;
+        if (adaptation == 2) return -1;
+        int p = off + 4;
+        if (adaptation == 3) p += 1 + (b[off + 4] & 0xFF);
+        if (p >= off + PACKET_SIZE) return -1;
+        p += 1 + (b[p] & 0xFF);
+        return p + 3 <= off + PACKET_SIZE ? p : -1;
+    }
+
+    private static int sectionEnd(byte[] b, int off, int p) {
+        int length = ((b[p + 1] & 0x0F) << 8) | (b[p + 2] & 0xFF);
+        // exclude the CRC
+        return Math.min(p + 3 + length - 4, off + PACKET_SIZE);
+    }
+
+    // PMT PIDs announced by a PAT packet
+    static List<Integer> pmtPids(byte[] b, int off) {
+        List<Integer> pids = new ArrayList<>();
+        int p = sectionStart(b, off);
+        if (p < 0 || b[p] != 0x00) return pids;
+        int end = sectionEnd(b, off, p);
+        for (int i = p + 8; i + 4 <= end; i += 4) {
+            int program = ((b[i] & 0xFF) << 8) | (b[i + 1] & 0xFF);
+            if (program != 0) {
+                pids.add(((b[i + 2] & 0x1F) << 8) | (b[i + 3] & 0xFF));
+            }
+        }
+        return pids;
+    }
+
+    // First video elementary stream PID in a PMT packet, or -1
+    static int videoPid(byte[] b, int off) {
+        int p = sectionStart(b, off);
+        if (p < 0 || b[p] != 0x02 || p + 12 > off + PACKET_SIZE) return -1;
+        int end = sectionEnd(b, off, p);
+        int programInfoLength = ((b[p + 10] & 0x0F) << 8) | (b[p + 11] & 0xFF);
+        for (int i = p + 12 + programInfoLength; i + 5 <= end; ) {
+            int streamType = b[i] & 0xFF;
+            int pid = ((b[i + 1] & 0x1F) << 8) | (b[i + 2] & 0xFF);
+            if (isVideo(streamType)) return pid;
+            i += 5 + (((b[i + 3] & 0x0F) << 8) | (b[i + 4] & 0xFF));
+        }
+        return -1;
+    }
+
+    private static boolean isVideo(int streamType) {
+        switch (streamType) {
+            case 0x01: // MPEG-1
+            case 0x02: // MPEG-2
+            case 0x10: // MPEG-4 part 2
+            case 0x1B: // H.264
+            case 0x24: // HEVC
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// In-memory view of the video folder, kept current by a WatchService
+public class VideoCatalog {
+    private static final Logger logger = LogManager.getLogger(VideoCatalog.class);
+
+    private static final Set<String> VIDEO_EXTENSIONS = new HashSet<>(
+        Arrays.asList("mp4", "mkv", "avi", "mov", "webm", "m4v", "ts", "flv", "wmv"));
+    private static final String CACHE_FILE = ".catalog";
+    // files still being written keep firing modify events; probe once they settle
+    private static final long SETTLE_MILLIS = 2000;
+
+    private final File folder;
+    private final Function<String, Collection<String>> listedNames;
+    private final Map<String, CatalogEntry> entries = new ConcurrentHashMap<>();
+    private final DelayQueue<PendingProbe> probeQueue = new DelayQueue<>();
+    private final Map<String, PendingProbe> pendingProbes = new ConcurrentHashMap<>();
+
+    private volatile List<String> listing = Collections.emptyList();
+    private volatile boolean dirty;
+    private WatchService watchService;
+
+    // listedNames maps a stored file to the names LIST shows for it, which may include renditions built on request
+    public VideoCatalog(File folder, Function<String, Collection<String>> listedNames) {
+        this.folder = folder;
+        this.listedNames = listedNames;
+    }
+
+    public void start() {
+        long started = System.currentTimeMillis();
+        Map<String, CatalogEntry> cached = loadCache();
+
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!isVideo(file.getName()) || !file.isFile()) continue;
+                CatalogEntry entry = cached.get(file.getName());
+                if (entry != null && entry.matches(file)) {
+                    entries.put(file.getName(), entry);
+                } else {
+                    entries.put(file.getName(), CatalogEntry.unprobed(file));
+                    scheduleProbe(file.getName(), 0);
+                }
+            }
+        }
+        rebuildListing();
+        logger.info("Catalog loaded {} files in {} ms ({} to probe)", entries.size(),
+            System.currentTimeMillis() - started, pendingProbes.size());
+
+        Thread prober = new Thread(this::probeLoop, "catalog-probe");
+        prober.setDaemon(true);
+        prober.start();
+
+        try {
+            folder.mkdirs();
+            watchService = FileSystems.getDefault().newWatchService();
+            folder.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            Thread watcher = new Thread(this::watchLoop, "catalog-watch");
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException e) {
+            logger.error("Could not watch {}, catalog will not see new files: ", folder, e);
+        }
+    }
+
+    // Names as LIST returns them; prebuilt so a request never touches the disk
+    public List<String> getNames() {
+        return listing;
+    }
+
+    // LIST reply: count, then each name
+    public void writeNames(DataOutput out) throws IOException {
+        List<String> names = listing;
+        out.writeInt(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    public CatalogEntry get(String name) {
+        return entries.get(name);
+    }
+
+    public Collection<CatalogEntry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    public static boolean isVideo(String name) {
+        if (name.startsWith(".")) return false;
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && VIDEO_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase());
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan();
+                        changed = true;
+                        continue;
+                    }
+                    String name = event.context().toString();
+                    if (!isVideo(name)) continue;
+
+                    File file = new File(folder, name);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE || !file.isFile()) {
+                        changed |= entries.remove(name) != null;
+                        dirty = true;
+                    } else {
+                        changed |= entries.putIfAbsent(name, CatalogEntry.unprobed(file)) == null;
+                        scheduleProbe(name, SETTLE_MILLIS);
+                    }
+                }
+                if (changed) rebuildListing();
+                if (!key.reset()) {
+                    logger.error("Stopped watching {}", folder);
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // shutting down
+        }
+    }
+
+    // Events were lost; reconcile with the folder
+    private void rescan() {
+        File[] files = folder.listFiles();
+        Set<String> present = new HashSet<>();
+        if (files != null) {
+            for (File file : files) {
+                if (!isVideo(file.getName()) || !file.isFile()) continue;
+                present.add(file.getName());
+                CatalogEntry entry = entries.get(file.getName());
+                if (entry == null || !entry.matches(file)) {
+                    entries.put(file.getName(), CatalogEntry.unprobed(file));
+                    scheduleProbe(file.getName(), 0);
+                }
+            }
+        }
+        entries.keySet().retainAll(present);
+        dirty = true;
+    }
+
+    private void scheduleProbe(String name, long delayMillis) {
+        PendingProbe probe = new PendingProbe(name, System.currentTimeMillis() + delayMillis);
+        PendingProbe previous = pendingProbes.put(name, probe);
+        if (previous != null) probeQueue.remove(previous);
+        probeQueue.add(probe);
+    }
+
+    private void probeLoop() {
+        try {
+            while (true) {
+                PendingProbe next = probeQueue.take();
+                pendingProbes.remove(next.name, next);
+                File file = new File(folder, next.name);
+                if (!file.isFile()) continue;
+
+                try {
+                    entries.put(next.name, MediaProbe.probe(file));
+                } catch (Exception e) {
+                    logger.warn("Could not probe {}: {}", next.name, e.getMessage());
+                }
+                dirty = true;
+                if (probeQueue.isEmpty()) {
+                    saveCache();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void rebuildListing() {
+        Set<String> names = new TreeSet<>();
+        for (String name : entries.keySet()) {
+            names.addAll(listedNames.apply(name));
+        }
+        listing = Collections.unmodifiableList(new ArrayList<>(names));
+    }
+
+    private Map<String, CatalogEntry> loadCache() {
+        Map<String, CatalogEntry> cached = new HashMap<>();
+        File cacheFile = new File(folder, CACHE_FILE);
+        if (!cacheFile.exists()) return cached;
+
+        try (BufferedReader reader = Files.newBufferedReader(cacheFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                CatalogEntry entry = CatalogEntry.fromLine(line);
+                if (entry != null) cached.put(entry.getName(), entry);
+            }
+        } catch (IOException e) {
+            logger.warn("Ignoring unreadable catalog cache: {}", e.getMessage());
+        }
+        return cached;
+    }
+
+    private synchronized void saveCache() {
+        if (!dirty) return;
+        dirty = false;
+        Path target = new File(folder, CACHE_FILE).toPath();
+        Path temp = new File(folder, CACHE_FILE + ".tmp").toPath();
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (CatalogEntry entry : entries.values()) {
+                if (!entry.isProbed()) continue;
+                writer.write(entry.toLine());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            logger.warn("Could not write catalog cache: {}", e.getMessage());
+            return;
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Could not replace catalog cache: {}", e.getMessage());
+        }
+    }
+
+    private static class PendingProbe implements Delayed {
+        final String name;
+        final long dueAt;
+
+        PendingProbe(String name, long dueAt) {
+            this.name = name;
+            this.dueAt = dueAt;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueAt, ((PendingProbe) other).dueAt);
+        }
+    }
+}